@@ -0,0 +1,448 @@
+package net.imglib2.introduction;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import mpicbg.models.RigidModel2D;
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.img.planar.PlanarImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmark of all threshold (also multi-level and sparse), gradient, center
+ * of mass (also the labeling of objects) and transform kernels for ArrayImg,
+ * PlanarImg and CellImg, several pixel types and 2d/3d sizes.
+ *
+ * The "pixels" counter reports the throughput in pixels per second, the allocation
+ * rate is reported by the gc profiler which is enabled by default in the benchmark
+ * profile of the pom. Run all of them using
+ *
+ *   mvn -P benchmark compile exec:exec
+ *
+ * or select kernels and parameters, e.g.
+ *
+ *   mvn -P benchmark compile exec:exec -Djmh.args="-prof gc Gradient -p container=planar -p size=256x256x256"
+ *
+ * The largest sizes need a heap that is large enough to hold the input and the
+ * result (about 2GB for 512x512x512), an ArrayImg cannot hold more than 2^31 pixels.
+ * The 2d-only kernels use the parameters container2d, type2d and size2d, the
+ * fixed-point transformation fixedPointContainer, fixedPointType and fixedPointSize.
+ */
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+@SuppressWarnings( { "rawtypes", "unchecked" } )
+public class KernelBenchmark
+{
+	/**
+	 * The image of the selected container, type and size filled with random values
+	 * in 8-bit range, the same image as FloatType and the threshold 100
+	 */
+	public static class TestImages
+	{
+		// the image of the selected type
+		Img img;
+
+		// the same image as FloatType for the kernels that only support 32-bit
+		Img< FloatType > floatImg;
+
+		// the threshold as the selected type
+		RealType threshold;
+
+		protected void setup( String container, String type, String size )
+		{
+			final String[] parts = size.split( "x" );
+			final long[] dimensions = new long[ parts.length ];
+
+			for ( int d = 0; d < parts.length; ++d )
+				dimensions[ d ] = Long.parseLong( parts[ d ] );
+
+			img = create( container, dimensions, type( type ) );
+
+			// a FloatType image is used for both, the kernels do not change it
+			if ( type.equals( "float" ) )
+				floatImg = img;
+			else
+				floatImg = create( container, dimensions, new FloatType() );
+
+			// fill both images with the same random values in 8-bit range
+			final Random random = new Random( 42 );
+			final Cursor< RealType > cursor = img.cursor();
+			final Cursor< FloatType > cursorFloat = floatImg.cursor();
+
+			while ( cursor.hasNext() )
+			{
+				final int value = random.nextInt( 256 );
+				cursor.next().setReal( value );
+
+				if ( floatImg != img )
+					cursorFloat.next().setReal( value );
+			}
+
+			threshold = ( RealType ) img.firstElement().copy();
+			threshold.setReal( 100 );
+		}
+
+		static Img create( String container, long[] dimensions, NativeType type )
+		{
+			final ImgFactory factory;
+
+			if ( container.equals( "array" ) )
+				factory = new ArrayImgFactory();
+			else if ( container.equals( "planar" ) )
+				factory = new PlanarImgFactory();
+			else
+				factory = new CellImgFactory( 64 );
+
+			return factory.create( dimensions, type );
+		}
+
+		static NativeType type( String type )
+		{
+			if ( type.equals( "ubyte" ) )
+				return new UnsignedByteType();
+			else if ( type.equals( "ushort" ) )
+				return new UnsignedShortType();
+			else
+				return new FloatType();
+		}
+	}
+
+	@State( Scope.Benchmark )
+	public static class Images extends TestImages
+	{
+		@Param( { "array", "planar", "cell" } )
+		public String container;
+
+		@Param( { "float", "ubyte", "ushort" } )
+		public String type;
+
+		@Param( { "256x256", "2048x2048", "256x256x256", "512x512x512" } )
+		public String size;
+
+		@Setup
+		public void setup()
+		{
+			setup( container, type, size );
+		}
+	}
+
+	/**
+	 * 2d images only, for the kernels that do not support other dimensionalities
+	 */
+	@State( Scope.Benchmark )
+	public static class Images2d extends TestImages
+	{
+		@Param( { "array", "planar", "cell" } )
+		public String container2d;
+
+		@Param( { "float", "ubyte", "ushort" } )
+		public String type2d;
+
+		@Param( { "256x256", "2048x2048" } )
+		public String size2d;
+
+		@Setup
+		public void setup()
+		{
+			setup( container2d, type2d, size2d );
+		}
+	}
+
+	/**
+	 * The 2d images that the fixed-point resampling supports, i.e. 8 or 16 bit
+	 * backed by a single array
+	 */
+	@State( Scope.Benchmark )
+	public static class FixedPointImages extends TestImages
+	{
+		@Param( { "array", "planar" } )
+		public String fixedPointContainer;
+
+		@Param( { "ubyte", "ushort" } )
+		public String fixedPointType;
+
+		@Param( { "256x256", "2048x2048" } )
+		public String fixedPointSize;
+
+		@Setup
+		public void setup()
+		{
+			setup( fixedPointContainer, fixedPointType, fixedPointSize );
+		}
+	}
+
+	/**
+	 * A copy of the FloatType image for the kernels that threshold in place. It is
+	 * allocated once and restored from the random image before every iteration
+	 * (by copying the backing arrays if possible), not before every invocation,
+	 * which would time the copy of up to 512x512x512 pixels and the JMH overhead of
+	 * a setup per call. Thresholding the result of a previous invocation again
+	 * reads, compares and writes every pixel just the same and produces the same
+	 * mask, so every invocation does the same work.
+	 */
+	@State( Scope.Thread )
+	public static class InPlace
+	{
+		Img< FloatType > img;
+
+		@Setup( Level.Iteration )
+		public void reset( Images images )
+		{
+			if ( img == null )
+				img = images.floatImg.factory().create( images.floatImg, new FloatType() );
+
+			copy( images.floatImg, img );
+		}
+
+		/**
+		 * Copies between two images created by the same factory
+		 */
+		static void copy( Img< FloatType > source, Img< FloatType > target )
+		{
+			if ( source instanceof ArrayImg )
+			{
+				final float[] sourceValues = ( ( FloatArray ) ( ( ArrayImg ) source ).update( null ) ).getCurrentStorageArray();
+				final float[] targetValues = ( ( FloatArray ) ( ( ArrayImg ) target ).update( null ) ).getCurrentStorageArray();
+
+				System.arraycopy( sourceValues, 0, targetValues, 0, sourceValues.length );
+			}
+			else if ( source instanceof PlanarImg )
+			{
+				for ( int p = 0; p < ( ( PlanarImg ) source ).numSlices(); ++p )
+				{
+					final float[] sourceValues = ( ( FloatArray ) ( ( PlanarImg ) source ).getPlane( p ) ).getCurrentStorageArray();
+					final float[] targetValues = ( ( FloatArray ) ( ( PlanarImg ) target ).getPlane( p ) ).getCurrentStorageArray();
+
+					System.arraycopy( sourceValues, 0, targetValues, 0, sourceValues.length );
+				}
+			}
+			else
+			{
+				final Cursor< FloatType > sourceCursor = source.cursor();
+				final Cursor< FloatType > targetCursor = target.cursor();
+
+				while ( sourceCursor.hasNext() )
+					targetCursor.next().set( sourceCursor.next() );
+			}
+		}
+	}
+
+	/**
+	 * The threshold mask of the image, the input of the labeling in CenterOfMass3
+	 */
+	@State( Scope.Benchmark )
+	public static class Masks
+	{
+		Img< BitType > mask;
+
+		@Setup
+		public void setup( Images images )
+		{
+			mask = new ImgLib2_Threshold4().threshold( images.img, ( Comparable ) images.threshold );
+		}
+	}
+
+	/**
+	 * Counts the processed pixels, reported by JMH as pixels per second
+	 */
+	@AuxCounters( AuxCounters.Type.OPERATIONS )
+	@State( Scope.Thread )
+	public static class Pixels
+	{
+		public long pixels;
+	}
+
+	final int numThreads = Runtime.getRuntime().availableProcessors();
+
+	@Benchmark
+	public void threshold1( InPlace inPlace, Pixels pixels )
+	{
+		new ImgLib2_Threshold1().threshold( inPlace.img, 100 );
+		pixels.pixels += inPlace.img.size();
+	}
+
+	@Benchmark
+	public void threshold1b( InPlace inPlace, Pixels pixels )
+	{
+		new ImgLib2_Threshold1b().threshold( inPlace.img, 100 );
+		pixels.pixels += inPlace.img.size();
+	}
+
+	@Benchmark
+	public Object threshold2( Images images, Pixels pixels )
+	{
+		pixels.pixels += images.floatImg.size();
+		return new ImgLib2_Threshold2().threshold( images.floatImg, 100 );
+	}
+
+	@Benchmark
+	public Object threshold3( Images images, Pixels pixels )
+	{
+		pixels.pixels += images.img.size();
+		return new ImgLib2_Threshold3().threshold( images.img, 100 );
+	}
+
+	@Benchmark
+	public Object threshold4( Images images, Pixels pixels )
+	{
+		pixels.pixels += images.img.size();
+		return new ImgLib2_Threshold4().threshold( images.img, ( Comparable ) images.threshold );
+	}
+
+	@Benchmark
+	public Object threshold5( Images images, Pixels pixels )
+	{
+		pixels.pixels += images.img.size();
+		return new ImgLib2_Threshold5().threshold( images.img, ( Comparable ) images.threshold );
+	}
+
+	@Benchmark
+	public Object threshold4Sparse( Images images, Pixels pixels )
+	{
+		pixels.pixels += images.img.size();
+		return new ImgLib2_Threshold4().thresholdSparse( images.img, ( Comparable ) images.threshold );
+	}
+
+	@Benchmark
+	public Object threshold6( Images images, Pixels pixels )
+	{
+		pixels.pixels += images.img.size();
+		return new ImgLib2_Threshold6().threshold( Views.iterable( images.img ), ( Comparable ) images.threshold );
+	}
+
+	@Benchmark
+	public Object threshold6Parallel( Images images, Pixels pixels ) throws Exception
+	{
+		pixels.pixels += images.img.size();
+		return new ImgLib2_Threshold6().threshold( Views.iterable( images.img ), ( Comparable ) images.threshold, numThreads );
+	}
+
+	@Benchmark
+	public Object threshold6SparseParallel( Images images, Pixels pixels ) throws Exception
+	{
+		pixels.pixels += images.img.size();
+		return new ImgLib2_Threshold6().thresholdSparse( Views.iterable( images.img ), ( Comparable ) images.threshold, numThreads );
+	}
+
+	@Benchmark
+	public Object multiThreshold( Images images, Pixels pixels )
+	{
+		pixels.pixels += images.img.size();
+		return new ImgLib2_MultiThreshold().classify( images.img, new double[] { 50, 100, 150, 200 } );
+	}
+
+	@Benchmark
+	public Object gradient1( Images images, Pixels pixels )
+	{
+		pixels.pixels += images.img.size();
+		return new ImgLib2_Gradient1().gradient( images.img );
+	}
+
+	@Benchmark
+	public Object gradient2( Images images, Pixels pixels )
+	{
+		pixels.pixels += images.img.size();
+		return new ImgLib2_Gradient2().gradient( images.img );
+	}
+
+	@Benchmark
+	public Object gradient3( Images images, Pixels pixels )
+	{
+		pixels.pixels += images.img.size();
+		return new ImgLib2_Gradient3().gradient( images.img );
+	}
+
+	@Benchmark
+	public Object gradient3Parallel( Images images, Pixels pixels ) throws Exception
+	{
+		pixels.pixels += images.img.size();
+		return new ImgLib2_Gradient3().gradient( images.img, numThreads );
+	}
+
+	@Benchmark
+	public Object gradientThreshold( Images images, Pixels pixels )
+	{
+		pixels.pixels += images.img.size();
+		return new ImgLib2_GradientThreshold().gradientThreshold( images.img, 20 );
+	}
+
+	@Benchmark
+	public Object centerOfMass1( Images2d images, Pixels pixels )
+	{
+		pixels.pixels += images.img.size();
+		return new ImgLib2_CenterOfMass1().centerOfMass2d( images.img );
+	}
+
+	@Benchmark
+	public Object centerOfMass2( Images images, Pixels pixels )
+	{
+		pixels.pixels += images.img.size();
+		return new ImgLib2_CenterOfMass2().centerOfMass( images.img );
+	}
+
+	@Benchmark
+	public Object centerOfMass2Parallel( Images images, Pixels pixels ) throws Exception
+	{
+		pixels.pixels += images.img.size();
+		return new ImgLib2_CenterOfMass2().centerOfMass( images.img, numThreads );
+	}
+
+	@Benchmark
+	public Object centerOfMass3( Images images, Masks masks, Pixels pixels )
+	{
+		pixels.pixels += images.img.size();
+		return new ImgLib2_CenterOfMass3().objectStatistics( masks.mask, images.img );
+	}
+
+	@Benchmark
+	public Object transform( Images images, Pixels pixels ) throws Exception
+	{
+		// rotate the first two dimensions by 15 degrees
+		final RigidModel2D model = new RigidModel2D();
+		model.set( (float)Math.toRadians( 15 ), 0, 0 );
+
+		pixels.pixels += images.img.size();
+		return new ImgLib2_Transform().transform( images.img, model );
+	}
+
+	@Benchmark
+	public Object transformFixedPoint( FixedPointImages images, Pixels pixels ) throws Exception
+	{
+		// rotate the first two dimensions by 15 degrees
+		final RigidModel2D model = new RigidModel2D();
+		model.set( (float)Math.toRadians( 15 ), 0, 0 );
+
+		pixels.pixels += images.img.size();
+		return new ImgLib2_Transform().transformFixedPoint( images.img, model, 8 );
+	}
+}
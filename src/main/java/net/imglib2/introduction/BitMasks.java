@@ -0,0 +1,189 @@
+package net.imglib2.introduction;
+
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.IterableInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.iterator.LocalizingIntervalIterator;
+import net.imglib2.type.Type;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Writes threshold masks into BitType images. If the BitType image is an ArrayImg
+ * or a PlanarImg backed by LongArrays, 64 results are collected in a long and
+ * stored as one word of the backing array. All other containers are written
+ * pixel by pixel.
+ *
+ * FloatType, UnsignedByteType and UnsignedShortType images backed by arrays are
+ * read line by line using a {@link LineReader} and compared as doubles.
+ */
+public class BitMasks
+{
+	/**
+	 * Sets every pixel of the mask to 1 if the corresponding pixel of the image is larger
+	 * than the threshold, 0 otherwise. Image and mask are iterated in the same order,
+	 * i.e. the image has to be iterable in flat order if the mask is an ArrayImg or
+	 * a PlanarImg, which is the case for ArrayImg, PlanarImg and Views.iterable().
+	 */
+	public static < T extends Comparable< T > & Type< T > > void threshold( IterableInterval< T > image, Img< BitType > mask, T threshold )
+	{
+		// the words of the mask, one array for an ArrayImg, one per plane for a PlanarImg
+		long[][] words = null;
+		long planeSize = mask.size();
+
+		if ( mask instanceof ArrayImg )
+		{
+			final Object data = ( ( ArrayImg< ?, ? > ) mask ).update( null );
+
+			if ( data instanceof LongArray )
+				words = new long[][] { ( ( LongArray ) data ).getCurrentStorageArray() };
+		}
+		else if ( mask instanceof PlanarImg )
+		{
+			final PlanarImg< ?, ? > planarImg = ( PlanarImg< ?, ? > ) mask;
+
+			// the number of pixels of each plane
+			planeSize = mask.numDimensions() > 1 ? mask.dimension( 0 ) * mask.dimension( 1 ) : mask.dimension( 0 );
+
+			if ( planarImg.numSlices() > 0 && planarImg.getPlane( 0 ) instanceof LongArray )
+			{
+				// every plane has its own array, the bits of each plane start at word 0
+				words = new long[ planarImg.numSlices() ][];
+
+				for ( int p = 0; p < planarImg.numSlices(); ++p )
+					words[ p ] = ( ( LongArray ) planarImg.getPlane( p ) ).getCurrentStorageArray();
+			}
+		}
+
+		if ( words != null )
+		{
+			// images of the common types backed by primitive arrays are copied line by
+			// line into doubles, so that compareTo() is not called for every pixel
+			final LineReader reader = threshold instanceof RealType && image instanceof RandomAccessibleInterval ?
+					LineReader.specialized( ( RandomAccessibleInterval< ? > ) image ) : null;
+
+			if ( reader != null )
+			{
+				threshold( reader, image, words, planeSize, ( ( RealType< ? > ) threshold ).getRealDouble() );
+			}
+			else
+			{
+				final Cursor< T > cursor = image.cursor();
+
+				for ( final long[] plane : words )
+					threshold( cursor, plane, planeSize, threshold );
+			}
+
+			return;
+		}
+
+		// any other container, set every pixel on its own
+		final Cursor< T > cursor = image.cursor();
+		final Cursor< BitType > cursorMask = mask.cursor();
+
+		while ( cursor.hasNext() )
+		{
+			// set the 0 or 1 depending on the value
+			if ( cursor.next().compareTo( threshold ) > 0 )
+				cursorMask.next().setReal( 1 );
+			else
+				cursorMask.next().setReal( 0 );
+		}
+	}
+
+	/**
+	 * Thresholds the image line by line into the words of the planes of the mask,
+	 * a line never spans two planes as the planes consist of whole lines
+	 */
+	protected static void threshold( LineReader reader, Interval image, long[][] words, long planeSize, final double threshold )
+	{
+		final int n = image.numDimensions();
+		final int sizeX = (int)image.dimension( 0 );
+
+		// iterate the first pixel of every line
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+
+		image.min( min );
+		image.max( max );
+		max[ 0 ] = min[ 0 ];
+
+		final LocalizingIntervalIterator lines = new LocalizingIntervalIterator( min, max );
+		final long[] position = new long[ n ];
+		final double[] line = new double[ sizeX ];
+
+		// the index of the first pixel of the line in flat order
+		long index = 0;
+
+		while ( lines.hasNext() )
+		{
+			lines.fwd();
+			lines.localize( position );
+			reader.read( position, line, 0, sizeX );
+
+			final long[] plane = words[ (int)( index / planeSize ) ];
+
+			// collect the bits in a local word, lines do not have to start or end at a word
+			long bit = index % planeSize;
+			int w = (int)( bit >>> 6 );
+			long word = plane[ w ];
+
+			for ( int x = 0; x < sizeX; ++x )
+			{
+				final long b = 1l << ( bit & 63 );
+				word = line[ x ] > threshold ? word | b : word & ~b;
+
+				if ( ( ++bit & 63 ) == 0 )
+				{
+					plane[ w++ ] = word;
+
+					if ( x + 1 < sizeX )
+						word = plane[ w ];
+				}
+			}
+
+			if ( ( bit & 63 ) != 0 )
+				plane[ w ] = word;
+
+			index += sizeX;
+		}
+	}
+
+	/**
+	 * Thresholds the next size pixels of the cursor into the words of a BitType
+	 * storage array, pixel i is bit (i % 64) of word (i / 64)
+	 */
+	protected static < T extends Comparable< T > > void threshold( Cursor< T > cursor, long[] words, long size, T threshold )
+	{
+		final int numFullWords = (int)( size >>> 6 );
+		final int remainder = (int)( size & 63 );
+
+		for ( int w = 0; w < numFullWords; ++w )
+		{
+			long word = 0;
+
+			for ( int b = 0; b < 64; ++b )
+				if ( cursor.next().compareTo( threshold ) > 0 )
+					word |= 1l << b;
+
+			words[ w ] = word;
+		}
+
+		// the last word is only partially used, keep the bits that do not belong to pixels
+		if ( remainder > 0 )
+		{
+			long word = words[ numFullWords ] & ( -1l << remainder );
+
+			for ( int b = 0; b < remainder; ++b )
+				if ( cursor.next().compareTo( threshold ) > 0 )
+					word |= 1l << b;
+
+			words[ numFullWords ] = word;
+		}
+	}
+}
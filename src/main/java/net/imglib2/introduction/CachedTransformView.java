@@ -0,0 +1,249 @@
+package net.imglib2.introduction;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import mpicbg.models.InvertibleBoundable;
+import mpicbg.models.NoninvertibleModelException;
+import net.imglib2.AbstractInterval;
+import net.imglib2.Interval;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * A lazily evaluated, read-only view of a transformed image. The view is split
+ * into tiles, a tile is resampled when one of its pixels is accessed for the first
+ * time and kept in a cache of bounded size. When the cache is full, the tile that
+ * was not used for the longest time is evicted and resampled again if needed.
+ *
+ * The cache is only locked to look up tiles, the tiles are rendered outside of
+ * the lock by the thread that requested them first, so several threads render
+ * different tiles at the same time. Threads that need a tile that is being
+ * rendered wait for it.
+ */
+public class CachedTransformView< T extends RealType< T > & NativeType< T > > extends AbstractInterval implements RandomAccessibleInterval< T >
+{
+	final int tileSize;
+	final long[] numTiles;
+	final T type;
+
+	// renders the tiles, every thread has its own LineResampler
+	final ThreadLocal< LineResampler< T > > resampler;
+
+	// the tiles in order of their last access, a tile is available
+	// once it is rendered
+	final LinkedHashMap< Long, FutureTask< Img< T > > > tiles;
+
+	/**
+	 * @param source - the image to transform
+	 * @param transform - the transformation, must not be changed while the view is used
+	 * @param interval - the part of the transformed image that is shown by the view
+	 * @param tileSize - the size of the tiles in every dimension
+	 * @param maxTiles - the maximal number of tiles that is kept in memory
+	 */
+	public CachedTransformView( final RandomAccessibleInterval< T > source, final InvertibleBoundable transform, Interval interval, int tileSize, final int maxTiles )
+	{
+		super( interval );
+
+		this.tileSize = tileSize;
+		this.numTiles = new long[ n ];
+
+		for ( int d = 0; d < n; ++d )
+			numTiles[ d ] = ( dimension( d ) + tileSize - 1 ) / tileSize;
+
+		// locations outside of the source are set to 0
+		this.type = Views.iterable( source ).firstElement().createVariable();
+		final T background = type.createVariable();
+		background.setReal( 0 );
+
+		this.resampler = new ThreadLocal< LineResampler< T > >()
+		{
+			protected LineResampler< T > initialValue()
+			{
+				return new LineResampler< T >( source, background, transform );
+			}
+		};
+
+		// a LinkedHashMap in access order that removes the least recently used tile,
+		// a tile that is evicted while it is rendered stays valid for the threads
+		// that wait for it
+		this.tiles = new LinkedHashMap< Long, FutureTask< Img< T > > >( 16, 0.75f, true )
+		{
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry( Map.Entry< Long, FutureTask< Img< T > > > eldest )
+			{
+				return size() > maxTiles;
+			}
+		};
+	}
+
+	/**
+	 * @return the tile at the given position in the grid of tiles, resampled if it is not cached
+	 */
+	protected Img< T > tile( long[] tilePosition )
+	{
+		// the index of the tile in the grid
+		long key = 0;
+
+		for ( int d = n - 1; d >= 0; --d )
+			key = key * numTiles[ d ] + tilePosition[ d ];
+
+		FutureTask< Img< T > > tile;
+		boolean render = false;
+
+		synchronized ( tiles )
+		{
+			tile = tiles.get( key );
+
+			if ( tile == null )
+			{
+				// a placeholder, the other threads wait until the tile is rendered
+				final long[] position = tilePosition.clone();
+
+				tile = new FutureTask< Img< T > >( new Callable< Img< T > >()
+				{
+					public Img< T > call() throws NoninvertibleModelException
+					{
+						return render( position );
+					}
+				});
+
+				tiles.put( key, tile );
+				render = true;
+			}
+		}
+
+		// render outside of the lock, so that cache hits and other tiles do not wait
+		if ( render )
+			tile.run();
+
+		try
+		{
+			return tile.get();
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( "Interrupted while waiting for a tile", e );
+		}
+		catch ( ExecutionException e )
+		{
+			// remove the failed tile so that the next access tries again
+			synchronized ( tiles )
+			{
+				if ( tiles.get( key ) == tile )
+					tiles.remove( key );
+			}
+
+			// only render() declares a checked exception, everything else is passed on as it is
+			final Throwable cause = e.getCause();
+
+			if ( cause instanceof NoninvertibleModelException )
+				throw new RuntimeException( "Cannot invert the transformation: " + cause, cause );
+			else if ( cause instanceof RuntimeException )
+				throw ( RuntimeException ) cause;
+			else if ( cause instanceof Error )
+				throw ( Error ) cause;
+			else
+				throw new RuntimeException( cause );
+		}
+	}
+
+	/**
+	 * Resamples the tile at the given position in the grid of tiles
+	 */
+	protected Img< T > render( long[] tilePosition ) throws NoninvertibleModelException
+	{
+		final long[] tileMin = new long[ n ];
+		final long[] dimensions = new long[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			tileMin[ d ] = min[ d ] + tilePosition[ d ] * tileSize;
+			dimensions[ d ] = Math.min( tileSize, max[ d ] - tileMin[ d ] + 1 );
+		}
+
+		final Img< T > tile = new ArrayImgFactory< T >().create( dimensions, type );
+
+		// render the tile in the coordinates of the transformed image
+		resampler.get().render( Views.translate( tile, tileMin ) );
+
+		return tile;
+	}
+
+	public RandomAccess< T > randomAccess()
+	{
+		return new TileRandomAccess();
+	}
+
+	public RandomAccess< T > randomAccess( Interval interval )
+	{
+		return randomAccess();
+	}
+
+	/**
+	 * A RandomAccess that keeps a reference to the tile it is currently in, it only
+	 * asks the cache for a tile when it moves into another tile. An evicted tile
+	 * stays valid for all RandomAccesses that still refer to it.
+	 */
+	protected class TileRandomAccess extends Point implements RandomAccess< T >
+	{
+		final long[] tilePosition = new long[ n ];
+		final long[] currentTilePosition = new long[ n ];
+
+		// the RandomAccess on the current tile, null until the first get()
+		RandomAccess< T > tileAccess = null;
+
+		public TileRandomAccess()
+		{
+			super( CachedTransformView.this.n );
+			CachedTransformView.this.min( position );
+		}
+
+		public T get()
+		{
+			boolean sameTile = tileAccess != null;
+
+			for ( int d = 0; d < n; ++d )
+			{
+				tilePosition[ d ] = ( position[ d ] - min[ d ] ) / tileSize;
+				sameTile &= tilePosition[ d ] == currentTilePosition[ d ];
+			}
+
+			if ( !sameTile )
+			{
+				tileAccess = tile( tilePosition ).randomAccess();
+				System.arraycopy( tilePosition, 0, currentTilePosition, 0, n );
+			}
+
+			// the location within the tile
+			for ( int d = 0; d < n; ++d )
+				tileAccess.setPosition( position[ d ] - min[ d ] - currentTilePosition[ d ] * tileSize, d );
+
+			return tileAccess.get();
+		}
+
+		public TileRandomAccess copy()
+		{
+			final TileRandomAccess copy = new TileRandomAccess();
+			copy.setPosition( this );
+
+			return copy;
+		}
+
+		public TileRandomAccess copyRandomAccess()
+		{
+			return copy();
+		}
+	}
+}
@@ -0,0 +1,39 @@
+package net.imglib2.introduction;
+
+/**
+ * A sum of doubles using compensated (Kahan-Babuska-Neumaier) summation,
+ * the rounding error of every addition is collected separately so that
+ * large sums of many small values do not lose precision
+ */
+public class CompensatedSum
+{
+	// the running sum
+	protected double sum = 0;
+
+	// the accumulated rounding errors of the running sum
+	protected double compensation = 0;
+
+	public void add( final double value )
+	{
+		final double t = sum + value;
+
+		// the rounding error is lost in the smaller of both summands
+		if ( Math.abs( sum ) >= Math.abs( value ) )
+			compensation += ( sum - t ) + value;
+		else
+			compensation += ( value - t ) + sum;
+
+		sum = t;
+	}
+
+	public void add( final CompensatedSum other )
+	{
+		add( other.sum );
+		add( other.compensation );
+	}
+
+	public double get()
+	{
+		return sum + compensation;
+	}
+}
@@ -0,0 +1,803 @@
+package net.imglib2.introduction;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import net.imglib2.AbstractCursor;
+import net.imglib2.AbstractInterval;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.IterableInterval;
+import net.imglib2.IterableRealInterval;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.type.NativeType;
+
+/**
+ * An image split into cells like a CellImg, of which only a bounded number is kept
+ * in memory. Cells are loaded lazily from a backing file, when the memory budget
+ * is exceeded the cell that was not used for the longest time is evicted and
+ * written back to the file if it was accessed for writing. Cells that were never
+ * written are 0. This allows to process images that are larger than the memory.
+ * An existing backing file, e.g. written by an earlier run, can be opened with
+ * {@link #open(File, long[], NativeType, int, long, boolean)}, also read-only.
+ *
+ * Each cell is an ArrayImg, so it can be processed with all methods that are fast
+ * on ArrayImgs (e.g. {@link BitMasks}). A cell returned by {@link #getCell(long[], boolean)}
+ * is only valid until the next cell is requested, so process the image cell by cell.
+ * The image is also an IterableInterval, its cursor iterates cell by cell and flat
+ * within each cell (like a CellImg), so it can be passed to kernels directly.
+ *
+ * A RandomAccess or Cursor pins the cell it is in, pinned cells are never evicted,
+ * even if the memory budget is exceeded, so writes through them are never lost.
+ * Call release() when a RandomAccess or Cursor is not used anymore. Only accesses
+ * created for writing mark the cells they visit as changed, cells that were only
+ * read are not written back.
+ *
+ * The number of cache hits, misses, evictions and write-backs can be used to tune
+ * the cell size and the memory budget.
+ */
+public class DiskCachedCellImg< T extends NativeType< T > > extends AbstractInterval implements RandomAccessibleInterval< T >, IterableInterval< T >
+{
+	// a cell in memory, if it has to be written back and the number of RandomAccesses that use it
+	protected static class Cell< T >
+	{
+		final Img< T > img;
+		boolean dirty = false;
+		int pins = 0;
+
+		Cell( Img< T > img )
+		{
+			this.img = img;
+		}
+	}
+
+	final int cellSize;
+	final long[] numCells;
+	final T type;
+
+	// the backing file, every cell has a slot of the size of a full cell
+	final RandomAccessFile file;
+	final long slotBytes;
+	final boolean writable;
+
+	// the cells that were written to the file at least once
+	final Set< Long > stored = new HashSet< Long >();
+
+	// the cells in memory in order of their last access, guarded by itself
+	final LinkedHashMap< Long, Cell< T > > cells;
+	final int maxCells;
+
+	long hits = 0, misses = 0, evictions = 0, writes = 0;
+
+	/**
+	 * @param dimensions - the size of the image
+	 * @param type - the pixel type
+	 * @param cellSize - the size of the cells in every dimension
+	 * @param backingFile - the file that holds the cells that are not in memory, it is overwritten
+	 * @param memoryBudget - the maximal number of bytes of all cells in memory (at least one cell is kept)
+	 */
+	public DiskCachedCellImg( long[] dimensions, T type, int cellSize, File backingFile, long memoryBudget ) throws IOException
+	{
+		this( dimensions, type, cellSize, backingFile, memoryBudget, true, false );
+	}
+
+	/**
+	 * Opens an existing backing file, the cells are loaded from it when they are
+	 * accessed. Cells whose slot lies beyond the end of the file are 0.
+	 *
+	 * @param writable - if changed cells are written back, otherwise the file is opened
+	 * read-only and cells cannot be requested for writing
+	 */
+	public static < T extends NativeType< T > > DiskCachedCellImg< T > open( File backingFile, long[] dimensions, T type, int cellSize, long memoryBudget, boolean writable ) throws IOException
+	{
+		if ( !backingFile.isFile() )
+			throw new IOException( "Cannot open " + backingFile + ": no such file" );
+
+		return new DiskCachedCellImg< T >( dimensions, type, cellSize, backingFile, memoryBudget, writable, true );
+	}
+
+	protected DiskCachedCellImg( long[] dimensions, T type, int cellSize, File backingFile, long memoryBudget, boolean writable, boolean existing ) throws IOException
+	{
+		super( dimensions );
+
+		this.cellSize = cellSize;
+		this.type = type.createVariable();
+		this.numCells = new long[ n ];
+
+		for ( int d = 0; d < n; ++d )
+			numCells[ d ] = ( dimension( d ) + cellSize - 1 ) / cellSize;
+
+		// the size of a full cell in bytes
+		final long[] cellDimensions = new long[ n ];
+
+		for ( int d = 0; d < n; ++d )
+			cellDimensions[ d ] = cellSize;
+
+		this.slotBytes = numBytes( storageArray( new ArrayImgFactory< T >().create( cellDimensions, this.type ) ) );
+
+		this.writable = writable;
+		this.file = new RandomAccessFile( backingFile, writable ? "rw" : "r" );
+
+		if ( existing )
+		{
+			// all cells whose slot starts within the file are loaded from it
+			final long numSlots = Math.min( numCells(), ( file.length() + slotBytes - 1 ) / slotBytes );
+
+			for ( long key = 0; key < numSlots; ++key )
+				stored.add( key );
+		}
+		else
+		{
+			this.file.setLength( 0 );
+		}
+
+		this.maxCells = (int)Math.max( 1, Math.min( Integer.MAX_VALUE, memoryBudget / slotBytes ) );
+
+		// a LinkedHashMap in access order, the least recently used cells are removed by evict()
+		this.cells = new LinkedHashMap< Long, Cell< T > >( 16, 0.75f, true );
+	}
+
+	/**
+	 * @return the number of cells in every dimension
+	 */
+	public long[] getCellGrid()
+	{
+		return numCells.clone();
+	}
+
+	public int getCellSize()
+	{
+		return cellSize;
+	}
+
+	/**
+	 * @return if changed cells are written back to the backing file
+	 */
+	public boolean isWritable()
+	{
+		return writable;
+	}
+
+	protected long numCells()
+	{
+		long numCells = 1;
+
+		for ( int d = 0; d < n; ++d )
+			numCells *= this.numCells[ d ];
+
+		return numCells;
+	}
+
+	/**
+	 * @return the cell at the given position in the grid of cells, loaded if it is not in memory.
+	 * The ArrayImg starts at 0, its location in the image is cellPosition * cellSize. It
+	 * may be evicted when another cell is requested, changes made afterwards are lost.
+	 *
+	 * @param write - if the cell will be changed and has to be written back on eviction
+	 */
+	public Img< T > getCell( long[] cellPosition, boolean write )
+	{
+		checkWrite( write );
+
+		synchronized ( cells )
+		{
+			return cell( cellPosition, write, false ).img;
+		}
+	}
+
+	/**
+	 * Gets or loads the cell and evicts the least recently used cells that are not
+	 * pinned if there are too many, must be called while holding the lock of the cells
+	 *
+	 * @param pin - if the cell is pinned, i.e. it is not evicted until it is unpinned
+	 */
+	protected Cell< T > cell( long[] cellPosition, boolean write, boolean pin )
+	{
+		// the index of the cell in the grid
+		long key = 0;
+
+		for ( int d = n - 1; d >= 0; --d )
+			key = key * numCells[ d ] + cellPosition[ d ];
+
+		Cell< T > cell = cells.get( key );
+
+		if ( cell == null )
+		{
+			++misses;
+
+			final long[] dimensions = new long[ n ];
+
+			for ( int d = 0; d < n; ++d )
+				dimensions[ d ] = Math.min( cellSize, dimension( d ) - cellPosition[ d ] * cellSize );
+
+			cell = new Cell< T >( new ArrayImgFactory< T >().create( dimensions, type ) );
+
+			if ( stored.contains( key ) )
+				load( key, cell );
+
+			cells.put( key, cell );
+		}
+		else
+		{
+			++hits;
+		}
+
+		cell.dirty |= write;
+
+		if ( pin )
+			++cell.pins;
+
+		evict( key );
+
+		return cell;
+	}
+
+	/**
+	 * Removes the least recently used cells that are not pinned until the cells fit
+	 * into the memory budget, changed cells are written back. The cell with the
+	 * given key was just requested and is kept. Must be called while holding the
+	 * lock of the cells.
+	 */
+	protected void evict( long keep )
+	{
+		final Iterator< Map.Entry< Long, Cell< T > > > iterator = cells.entrySet().iterator();
+
+		while ( cells.size() > maxCells && iterator.hasNext() )
+		{
+			final Map.Entry< Long, Cell< T > > entry = iterator.next();
+
+			if ( entry.getValue().pins > 0 || entry.getKey() == keep )
+				continue;
+
+			++evictions;
+
+			if ( entry.getValue().dirty )
+				store( entry.getKey(), entry.getValue() );
+
+			iterator.remove();
+		}
+	}
+
+	protected void checkWrite( boolean write )
+	{
+		if ( write && !writable )
+			throw new IllegalStateException( "The image was opened read-only" );
+	}
+
+	/**
+	 * @return the interval of the cell in the image
+	 */
+	public Interval getCellInterval( long[] cellPosition )
+	{
+		final long[] cellMin = new long[ n ];
+		final long[] cellMax = new long[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			cellMin[ d ] = min[ d ] + cellPosition[ d ] * cellSize;
+			cellMax[ d ] = Math.min( cellMin[ d ] + cellSize - 1, max[ d ] );
+		}
+
+		return new FinalInterval( cellMin, cellMax );
+	}
+
+	/**
+	 * Writes all changed cells to the backing file, they stay in memory. Pinned cells
+	 * stay marked as changed, their RandomAccesses may still write to them.
+	 */
+	public void flush()
+	{
+		synchronized ( cells )
+		{
+			for ( Map.Entry< Long, Cell< T > > entry : cells.entrySet() )
+			{
+				if ( entry.getValue().dirty )
+				{
+					store( entry.getKey(), entry.getValue() );
+					entry.getValue().dirty = entry.getValue().pins > 0;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Closes the backing file, the image cannot be used afterwards
+	 */
+	public void close() throws IOException
+	{
+		synchronized ( cells )
+		{
+			cells.clear();
+			file.close();
+		}
+	}
+
+	/**
+	 * @return the number of requested cells that were in memory
+	 */
+	public long getHits()
+	{
+		synchronized ( cells )
+		{
+			return hits;
+		}
+	}
+
+	/**
+	 * @return the number of requested cells that had to be loaded or created
+	 */
+	public long getMisses()
+	{
+		synchronized ( cells )
+		{
+			return misses;
+		}
+	}
+
+	/**
+	 * @return the number of cells that were removed from memory
+	 */
+	public long getEvictions()
+	{
+		synchronized ( cells )
+		{
+			return evictions;
+		}
+	}
+
+	/**
+	 * @return the number of cells that were written to the backing file
+	 */
+	public long getWrites()
+	{
+		synchronized ( cells )
+		{
+			return writes;
+		}
+	}
+
+	public String toString()
+	{
+		synchronized ( cells )
+		{
+			return "DiskCachedCellImg: " + cells.size() + " cells in memory, " + hits + " hits, " + misses + " misses, " + evictions + " evictions, " + writes + " writes";
+		}
+	}
+
+	protected void store( long key, Cell< T > cell )
+	{
+		final Object array = storageArray( cell.img );
+		final ByteBuffer buffer = ByteBuffer.allocate( (int)numBytes( array ) );
+
+		toBytes( array, buffer );
+
+		try
+		{
+			file.seek( key * slotBytes );
+			file.write( buffer.array() );
+		}
+		catch ( IOException e )
+		{
+			throw new RuntimeException( "Cannot write cell " + key + ": " + e, e );
+		}
+
+		stored.add( key );
+		++writes;
+	}
+
+	protected void load( long key, Cell< T > cell )
+	{
+		final Object array = storageArray( cell.img );
+		final ByteBuffer buffer = ByteBuffer.allocate( (int)numBytes( array ) );
+
+		try
+		{
+			file.seek( key * slotBytes );
+			file.readFully( buffer.array() );
+		}
+		catch ( IOException e )
+		{
+			throw new RuntimeException( "Cannot read cell " + key + ": " + e, e );
+		}
+
+		fromBytes( buffer, array );
+	}
+
+	protected static Object storageArray( Img< ? > cell )
+	{
+		return ( ( ArrayDataAccess< ? > ) ( ( ArrayImg< ?, ? > ) cell ).update( null ) ).getCurrentStorageArray();
+	}
+
+	protected static long numBytes( Object array )
+	{
+		if ( array instanceof byte[] )
+			return ( ( byte[] ) array ).length;
+		else if ( array instanceof short[] )
+			return ( ( short[] ) array ).length * 2l;
+		else if ( array instanceof char[] )
+			return ( ( char[] ) array ).length * 2l;
+		else if ( array instanceof int[] )
+			return ( ( int[] ) array ).length * 4l;
+		else if ( array instanceof float[] )
+			return ( ( float[] ) array ).length * 4l;
+		else if ( array instanceof long[] )
+			return ( ( long[] ) array ).length * 8l;
+		else if ( array instanceof double[] )
+			return ( ( double[] ) array ).length * 8l;
+		else
+			throw new IllegalArgumentException( "Unsupported storage array " + array.getClass().getSimpleName() );
+	}
+
+	protected static void toBytes( Object array, ByteBuffer buffer )
+	{
+		if ( array instanceof byte[] )
+			buffer.put( ( byte[] ) array );
+		else if ( array instanceof short[] )
+			buffer.asShortBuffer().put( ( short[] ) array );
+		else if ( array instanceof char[] )
+			buffer.asCharBuffer().put( ( char[] ) array );
+		else if ( array instanceof int[] )
+			buffer.asIntBuffer().put( ( int[] ) array );
+		else if ( array instanceof float[] )
+			buffer.asFloatBuffer().put( ( float[] ) array );
+		else if ( array instanceof long[] )
+			buffer.asLongBuffer().put( ( long[] ) array );
+		else
+			buffer.asDoubleBuffer().put( ( double[] ) array );
+	}
+
+	protected static void fromBytes( ByteBuffer buffer, Object array )
+	{
+		if ( array instanceof byte[] )
+			buffer.get( ( byte[] ) array );
+		else if ( array instanceof short[] )
+			buffer.asShortBuffer().get( ( short[] ) array );
+		else if ( array instanceof char[] )
+			buffer.asCharBuffer().get( ( char[] ) array );
+		else if ( array instanceof int[] )
+			buffer.asIntBuffer().get( ( int[] ) array );
+		else if ( array instanceof float[] )
+			buffer.asFloatBuffer().get( ( float[] ) array );
+		else if ( array instanceof long[] )
+			buffer.asLongBuffer().get( ( long[] ) array );
+		else
+			buffer.asDoubleBuffer().get( ( double[] ) array );
+	}
+
+	/**
+	 * A RandomAccess of a writable image marks every cell it visits as changed, use
+	 * {@link #randomAccess(boolean)} to only read cells without writing them back.
+	 */
+	public CellRandomAccess randomAccess()
+	{
+		return randomAccess( writable );
+	}
+
+	public CellRandomAccess randomAccess( Interval interval )
+	{
+		return randomAccess();
+	}
+
+	/**
+	 * @param write - if the cells visited by the RandomAccess are changed and have to be written back
+	 */
+	public CellRandomAccess randomAccess( boolean write )
+	{
+		checkWrite( write );
+
+		return new CellRandomAccess( write );
+	}
+
+	/**
+	 * A Cursor of a writable image marks every cell it visits as changed, use
+	 * {@link #cursor(boolean)} to only read cells without writing them back.
+	 */
+	public CellCursor cursor()
+	{
+		return cursor( writable );
+	}
+
+	/**
+	 * @param write - if the cells visited by the Cursor are changed and have to be written back
+	 */
+	public CellCursor cursor( boolean write )
+	{
+		checkWrite( write );
+
+		return new CellCursor( write );
+	}
+
+	public CellCursor localizingCursor()
+	{
+		return cursor();
+	}
+
+	public Iterator< T > iterator()
+	{
+		return cursor();
+	}
+
+	public long size()
+	{
+		long size = 1;
+
+		for ( int d = 0; d < n; ++d )
+			size *= dimension( d );
+
+		return size;
+	}
+
+	/**
+	 * @return the first pixel, read without marking its cell as changed
+	 */
+	public T firstElement()
+	{
+		final CellCursor cursor = cursor( false );
+		final T first = cursor.next();
+		cursor.release();
+
+		return first;
+	}
+
+	/**
+	 * @return the order of the cells, only equal to itself as no other image iterates cell by cell in the same way
+	 */
+	public Object iterationOrder()
+	{
+		return this;
+	}
+
+	public boolean equalIterationOrder( IterableRealInterval< ? > f )
+	{
+		return iterationOrder().equals( f.iterationOrder() );
+	}
+
+	/**
+	 * A RandomAccess that pins the cell it is currently in, it only asks the cache
+	 * for a cell when it moves into another cell and unpins the previous one then.
+	 */
+	public class CellRandomAccess extends Point implements RandomAccess< T >
+	{
+		final long[] cellPosition = new long[ n ];
+		final long[] currentCellPosition = new long[ n ];
+
+		// the pinned current cell and a RandomAccess on it, null until the first get()
+		Cell< T > cell = null;
+		RandomAccess< T > cellAccess = null;
+
+		// if the visited cells are marked as changed
+		final boolean write;
+
+		public CellRandomAccess( boolean write )
+		{
+			super( DiskCachedCellImg.this.n );
+			DiskCachedCellImg.this.min( position );
+
+			this.write = write;
+		}
+
+		public T get()
+		{
+			boolean sameCell = cellAccess != null;
+
+			for ( int d = 0; d < n; ++d )
+			{
+				cellPosition[ d ] = ( position[ d ] - min[ d ] ) / cellSize;
+				sameCell &= cellPosition[ d ] == currentCellPosition[ d ];
+			}
+
+			if ( !sameCell )
+			{
+				synchronized ( cells )
+				{
+					// unpin first, so that the previous cell can be evicted for the new one
+					if ( cell != null )
+						--cell.pins;
+
+					cell = cell( cellPosition, write, true );
+				}
+
+				cellAccess = cell.img.randomAccess();
+				System.arraycopy( cellPosition, 0, currentCellPosition, 0, n );
+			}
+
+			// the location within the cell
+			for ( int d = 0; d < n; ++d )
+				cellAccess.setPosition( position[ d ] - min[ d ] - currentCellPosition[ d ] * cellSize, d );
+
+			return cellAccess.get();
+		}
+
+		/**
+		 * Unpins the current cell, so that it can be evicted. The RandomAccess can be
+		 * used again afterwards, it pins the cell again with the next get().
+		 */
+		public void release()
+		{
+			synchronized ( cells )
+			{
+				if ( cell == null )
+					return;
+
+				--cell.pins;
+				cell = null;
+				cellAccess = null;
+
+				evict( -1 );
+			}
+		}
+
+		public CellRandomAccess copy()
+		{
+			final CellRandomAccess copy = new CellRandomAccess( write );
+			copy.setPosition( this );
+
+			return copy;
+		}
+
+		public CellRandomAccess copyRandomAccess()
+		{
+			return copy();
+		}
+	}
+
+	/**
+	 * Iterates the cells in flat order of the cell grid and the pixels of each cell
+	 * in flat order, it pins the cell it is currently in like a {@link CellRandomAccess}
+	 */
+	public class CellCursor extends AbstractCursor< T >
+	{
+		// if the visited cells are marked as changed
+		final boolean write;
+		final long lastCell;
+
+		// the current cell, its position in the grid and in the image, and a cursor on it
+		final long[] cellPosition = new long[ n ];
+		final long[] cellMin = new long[ n ];
+		long cellIndex;
+		Cell< T > cell;
+		Cursor< T > cellCursor;
+
+		public CellCursor( boolean write )
+		{
+			super( DiskCachedCellImg.this.n );
+
+			this.write = write;
+			this.lastCell = numCells() - 1;
+
+			reset();
+		}
+
+		public T get()
+		{
+			return cellCursor.get();
+		}
+
+		public void fwd()
+		{
+			if ( cellCursor == null || !cellCursor.hasNext() )
+				nextCell();
+
+			cellCursor.fwd();
+		}
+
+		public void jumpFwd( final long steps )
+		{
+			for ( long i = 0; i < steps; ++i )
+				fwd();
+		}
+
+		public boolean hasNext()
+		{
+			return cellIndex < lastCell || ( cellCursor != null && cellCursor.hasNext() );
+		}
+
+		public void reset()
+		{
+			release();
+			cellIndex = -1;
+		}
+
+		/**
+		 * Moves to the next cell, pins it and unpins the previous one
+		 */
+		protected void nextCell()
+		{
+			long index = ++cellIndex;
+
+			for ( int d = 0; d < n; ++d )
+			{
+				cellPosition[ d ] = index % numCells[ d ];
+				index /= numCells[ d ];
+				cellMin[ d ] = min[ d ] + cellPosition[ d ] * cellSize;
+			}
+
+			synchronized ( cells )
+			{
+				// unpin first, so that the previous cell can be evicted for the new one
+				if ( cell != null )
+					--cell.pins;
+
+				cell = cell( cellPosition, write, true );
+			}
+
+			cellCursor = cell.img.localizingCursor();
+		}
+
+		/**
+		 * Unpins the current cell, so that it can be evicted. The cursor is
+		 * at the start again afterwards.
+		 */
+		public void release()
+		{
+			synchronized ( cells )
+			{
+				if ( cell != null )
+				{
+					--cell.pins;
+					evict( -1 );
+				}
+
+				cell = null;
+				cellCursor = null;
+				cellIndex = -1;
+			}
+		}
+
+		public void localize( long[] pos )
+		{
+			for ( int d = 0; d < n; ++d )
+				pos[ d ] = cellMin[ d ] + cellCursor.getLongPosition( d );
+		}
+
+		public void localize( int[] pos )
+		{
+			for ( int d = 0; d < n; ++d )
+				pos[ d ] = (int)( cellMin[ d ] + cellCursor.getLongPosition( d ) );
+		}
+
+		public long getLongPosition( int d )
+		{
+			return cellMin[ d ] + cellCursor.getLongPosition( d );
+		}
+
+		public int getIntPosition( int d )
+		{
+			return (int)getLongPosition( d );
+		}
+
+		public CellCursor copy()
+		{
+			final CellCursor copy = new CellCursor( write );
+
+			if ( cellCursor != null )
+			{
+				// pin the same cell and continue from the same pixel
+				copy.cellIndex = cellIndex - 1;
+				copy.nextCell();
+				copy.cellCursor = cellCursor.copyCursor();
+			}
+
+			return copy;
+		}
+
+		public CellCursor copyCursor()
+		{
+			return copy();
+		}
+	}
+}
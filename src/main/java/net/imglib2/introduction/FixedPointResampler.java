@@ -0,0 +1,255 @@
+package net.imglib2.introduction;
+
+import mpicbg.models.InvertibleBoundable;
+import mpicbg.models.NoninvertibleModelException;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+/**
+ * Bilinear resampling of 2d UnsignedByteType and UnsignedShortType images using
+ * fixed-point arithmetic on the backing byte[] or short[] arrays. Source locations
+ * are stepped along each line as 32.32 fixed-point numbers, the fractional part is
+ * quantized to a configurable number of bits and looked up in precomputed weight
+ * tables. The interpolation is done in two passes (x, then y) using ints only.
+ * The quantized location is off by up to 2^-subpixelBits pixels in each
+ * direction and both passes round, so the result can differ from
+ * NLinearInterpolator by up to (maximal difference of neighbors) / 2^subpixelBits
+ * + 1 gray values, i.e. by up to 4 gray values for 8-bit images and 8 subpixel
+ * bits (see LineResamplerTest), less in smooth images.
+ *
+ * Only works for affine models and ArrayImgs or single-plane PlanarImgs (e.g.
+ * wrapped ImageJ images), see {@link #supports(Img, InvertibleBoundable)}.
+ * Locations outside of the source are 0.
+ */
+public class FixedPointResampler
+{
+	// the number of fractional bits of the source locations
+	final static int FRACTION_BITS = 32;
+
+	final int subpixelBits;
+	final int one;
+
+	// the weights of the left/upper and right/lower neighbor for every subpixel position
+	final int[] weight0;
+	final int[] weight1;
+
+	/**
+	 * @param subpixelBits - the precision of the subpixel location and the weights (1...15)
+	 */
+	public FixedPointResampler( int subpixelBits )
+	{
+		if ( subpixelBits < 1 || subpixelBits > 15 )
+			throw new IllegalArgumentException( "The subpixel precision must be between 1 and 15 bits, but is " + subpixelBits );
+
+		this.subpixelBits = subpixelBits;
+		this.one = 1 << subpixelBits;
+		this.weight0 = new int[ one ];
+		this.weight1 = new int[ one ];
+
+		for ( int f = 0; f < one; ++f )
+		{
+			weight0[ f ] = one - f;
+			weight1[ f ] = f;
+		}
+	}
+
+	/**
+	 * @return true if the image and the transformation can be resampled by this class
+	 */
+	public static boolean supports( Img< ? > img, InvertibleBoundable transform )
+	{
+		if ( img.numDimensions() != 2 || !LineResampler.isAffine( transform ) )
+			return false;
+
+		final Object pixels = storageArray( img );
+
+		return ( img.firstElement() instanceof UnsignedByteType && pixels instanceof byte[] ) ||
+			( img.firstElement() instanceof UnsignedShortType && pixels instanceof short[] );
+	}
+
+	/**
+	 * Transforms the source into the target, both must have the same type and be
+	 * supported by this class.
+	 */
+	public < T extends RealType< T > > void transform( Img< T > source, Img< T > target, InvertibleBoundable transform ) throws NoninvertibleModelException
+	{
+		final int width = (int)source.dimension( 0 );
+		final int height = (int)source.dimension( 1 );
+		final int targetWidth = (int)target.dimension( 0 );
+		final int targetHeight = (int)target.dimension( 1 );
+
+		final Object sourcePixels = storageArray( source );
+		final Object targetPixels = storageArray( target );
+
+		final float[] tmp = new float[ 2 ];
+		final int last = Math.max( 1, targetWidth - 1 );
+
+		for ( int y = 0; y < targetHeight; ++y )
+		{
+			// the source location of the first and the last pixel of the line, the
+			// step along x is their difference divided by the length of the line
+			// (like in LineResampler), so that the float rounding of the models is
+			// not accumulated along the line
+			tmp[ 0 ] = 0;
+			tmp[ 1 ] = y;
+			transform.applyInverseInPlace( tmp );
+
+			final double startX = tmp[ 0 ];
+			final double startY = tmp[ 1 ];
+
+			tmp[ 0 ] = last;
+			tmp[ 1 ] = y;
+			transform.applyInverseInPlace( tmp );
+
+			final long x0 = toFixedPoint( startX );
+			final long y0 = toFixedPoint( startY );
+			final long dx = toFixedPoint( ( tmp[ 0 ] - startX ) / last );
+			final long dy = toFixedPoint( ( tmp[ 1 ] - startY ) / last );
+
+			if ( sourcePixels instanceof byte[] )
+				resampleLine( ( byte[] ) sourcePixels, width, height, ( byte[] ) targetPixels, y * targetWidth, targetWidth, x0, y0, dx, dy );
+			else
+				resampleLine( ( short[] ) sourcePixels, width, height, ( short[] ) targetPixels, y * targetWidth, targetWidth, x0, y0, dx, dy );
+		}
+	}
+
+	protected void resampleLine( final byte[] source, final int width, final int height, final byte[] target, final int offset, final int size, long x, long y, final long dx, final long dy )
+	{
+		final int shift = FRACTION_BITS - subpixelBits;
+		final int mask = one - 1;
+		final int half = one >> 1;
+
+		for ( int i = 0; i < size; ++i, x += dx, y += dy )
+		{
+			// the upper left neighbor and the subpixel location
+			final int ix = (int)( x >> FRACTION_BITS );
+			final int iy = (int)( y >> FRACTION_BITS );
+			final int fx = (int)( x >>> shift ) & mask;
+			final int fy = (int)( y >>> shift ) & mask;
+
+			final int a, b, c, d;
+
+			if ( ix >= 0 && iy >= 0 && ix < width - 1 && iy < height - 1 )
+			{
+				// all four neighbors are inside the source
+				final int index = iy * width + ix;
+
+				a = source[ index ] & 0xff;
+				b = source[ index + 1 ] & 0xff;
+				c = source[ index + width ] & 0xff;
+				d = source[ index + width + 1 ] & 0xff;
+			}
+			else if ( ix >= -1 && iy >= -1 && ix < width && iy < height )
+			{
+				// at the border of the source, neighbors outside are 0
+				a = get( source, width, height, ix, iy );
+				b = get( source, width, height, ix + 1, iy );
+				c = get( source, width, height, ix, iy + 1 );
+				d = get( source, width, height, ix + 1, iy + 1 );
+			}
+			else
+			{
+				target[ offset + i ] = 0;
+				continue;
+			}
+
+			// interpolate in x, then in y
+			final int upper = ( a * weight0[ fx ] + b * weight1[ fx ] + half ) >> subpixelBits;
+			final int lower = ( c * weight0[ fx ] + d * weight1[ fx ] + half ) >> subpixelBits;
+
+			target[ offset + i ] = (byte)( ( upper * weight0[ fy ] + lower * weight1[ fy ] + half ) >> subpixelBits );
+		}
+	}
+
+	protected void resampleLine( final short[] source, final int width, final int height, final short[] target, final int offset, final int size, long x, long y, final long dx, final long dy )
+	{
+		final int shift = FRACTION_BITS - subpixelBits;
+		final int mask = one - 1;
+		final int half = one >> 1;
+
+		for ( int i = 0; i < size; ++i, x += dx, y += dy )
+		{
+			// the upper left neighbor and the subpixel location
+			final int ix = (int)( x >> FRACTION_BITS );
+			final int iy = (int)( y >> FRACTION_BITS );
+			final int fx = (int)( x >>> shift ) & mask;
+			final int fy = (int)( y >>> shift ) & mask;
+
+			final int a, b, c, d;
+
+			if ( ix >= 0 && iy >= 0 && ix < width - 1 && iy < height - 1 )
+			{
+				// all four neighbors are inside the source
+				final int index = iy * width + ix;
+
+				a = source[ index ] & 0xffff;
+				b = source[ index + 1 ] & 0xffff;
+				c = source[ index + width ] & 0xffff;
+				d = source[ index + width + 1 ] & 0xffff;
+			}
+			else if ( ix >= -1 && iy >= -1 && ix < width && iy < height )
+			{
+				// at the border of the source, neighbors outside are 0
+				a = get( source, width, height, ix, iy );
+				b = get( source, width, height, ix + 1, iy );
+				c = get( source, width, height, ix, iy + 1 );
+				d = get( source, width, height, ix + 1, iy + 1 );
+			}
+			else
+			{
+				target[ offset + i ] = 0;
+				continue;
+			}
+
+			// interpolate in x, then in y
+			final int upper = ( a * weight0[ fx ] + b * weight1[ fx ] + half ) >> subpixelBits;
+			final int lower = ( c * weight0[ fx ] + d * weight1[ fx ] + half ) >> subpixelBits;
+
+			target[ offset + i ] = (short)( ( upper * weight0[ fy ] + lower * weight1[ fy ] + half ) >> subpixelBits );
+		}
+	}
+
+	protected static int get( final byte[] source, final int width, final int height, final int x, final int y )
+	{
+		if ( x < 0 || y < 0 || x >= width || y >= height )
+			return 0;
+
+		return source[ y * width + x ] & 0xff;
+	}
+
+	protected static int get( final short[] source, final int width, final int height, final int x, final int y )
+	{
+		if ( x < 0 || y < 0 || x >= width || y >= height )
+			return 0;
+
+		return source[ y * width + x ] & 0xffff;
+	}
+
+	protected static long toFixedPoint( final double value )
+	{
+		return Math.round( value * ( 1l << FRACTION_BITS ) );
+	}
+
+	/**
+	 * @return the primitive array that holds all pixels of the image, or null if there is none
+	 */
+	protected static Object storageArray( Img< ? > img )
+	{
+		Object data = null;
+
+		if ( img instanceof ArrayImg )
+			data = ( ( ArrayImg< ?, ? > ) img ).update( null );
+		else if ( img instanceof PlanarImg && ( ( PlanarImg< ?, ? > ) img ).numSlices() == 1 )
+			data = ( ( PlanarImg< ?, ? > ) img ).getPlane( 0 );
+
+		if ( data instanceof ArrayDataAccess )
+			return ( ( ArrayDataAccess< ? > ) data ).getCurrentStorageArray();
+
+		return null;
+	}
+}
@@ -0,0 +1,442 @@
+package net.imglib2.introduction;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converter;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.view.Views;
+
+/**
+ *  Central differences gradient magnitude in N dimensions, split into the
+ *  interior of the image (no OutOfBoundsStrategy needed) and the one-pixel
+ *  shell around it (mirrored using an OutOfBoundsStrategy). The interior is
+ *  computed by streaming the image through three rolling buffers of doubles,
+ *  so that every input sample is only read once.
+ *
+ *  The kernels compute the sum of the squared central differences and hand it
+ *  to a Converter that writes the output pixel, by default the magnitude of
+ *  the gradient (the square root). If the Converter is a {@link LineConverter},
+ *  the interior is converted line by line and written through a {@link LineWriter}.
+ */
+public class GradientStencil
+{
+	public static < T extends RealType< T >, S extends RealType< S > > void gradient( RandomAccessibleInterval< T > img, RandomAccessibleInterval< S > gradientImg, Interval block )
+	{
+		gradient( img, gradientImg, block, GradientStencil.< S >magnitude() );
+	}
+
+	public static < T extends RealType< T >, S > void gradient( RandomAccessibleInterval< T > img, RandomAccessibleInterval< S > gradientImg, Interval block, Converter< DoubleType, S > converter )
+	{
+		// the interior pixels of the block can be computed directly on the
+		// image, all their neighbors are inside the image
+		FinalInterval interior = intersect( interior( img ), block );
+
+		if ( interior != null )
+			gradientInterior( img, gradientImg, interior, converter );
+
+		// only the pixels of the one-pixel shell that are part of the block
+		// need the mirroring out of bounds strategy
+		RandomAccessible< T > view = Views.extendMirrorSingle( img );
+
+		for ( FinalInterval face : border( img, block ) )
+			gradient( view, Views.interval( gradientImg, face ), converter );
+	}
+
+	/**
+	 * Computes the gradient for all pixels of an interval that lies in the interior
+	 * of the image, i.e. all neighbors of all pixels must be inside the image.
+	 *
+	 * The image is read slab by slab along the last dimension (lines in 2d, planes
+	 * in 3d), we keep the previous, current and next slab in primitive double
+	 * buffers. The central differences in the last dimension come from the previous
+	 * and next slab, all other dimensions are neighbors within the current slab.
+	 */
+	public static < T extends RealType< T >, S extends RealType< S > > void gradientInterior( RandomAccessibleInterval< T > img, RandomAccessibleInterval< S > gradientImg, Interval interior )
+	{
+		gradientInterior( img, gradientImg, interior, GradientStencil.< S >magnitude() );
+	}
+
+	public static < T extends RealType< T >, S > void gradientInterior( RandomAccessibleInterval< T > img, RandomAccessibleInterval< S > gradientImg, Interval interior, Converter< DoubleType, S > converter )
+	{
+		final int n = interior.numDimensions();
+		final int lastDim = n - 1;
+
+		// the buffer covers the interval plus one pixel on each side in all
+		// dimensions of the slab, those are the neighbors we need
+		final long[] bufferMin = new long[ n ];
+		final long[] bufferMax = new long[ n ];
+		final int[] stride = new int[ n ];
+
+		long bufferSize = 1;
+
+		for ( int d = 0; d < lastDim; ++d )
+		{
+			bufferMin[ d ] = interior.min( d ) - 1;
+			bufferMax[ d ] = interior.max( d ) + 1;
+			stride[ d ] = (int)bufferSize;
+			bufferSize *= bufferMax[ d ] - bufferMin[ d ] + 1;
+		}
+
+		// in 1d there is no slab and if a slab does not fit into an array
+		// we fall back to computing every pixel with a RandomAccess
+		if ( n == 1 || bufferSize > Integer.MAX_VALUE )
+		{
+			gradient( img, Views.interval( gradientImg, interior ), converter );
+			return;
+		}
+
+		double[] previous = new double[ (int)bufferSize ];
+		double[] current = new double[ (int)bufferSize ];
+		double[] next = new double[ (int)bufferSize ];
+
+		final long minZ = interior.min( lastDim );
+		final long maxZ = interior.max( lastDim );
+
+		// copies the lines of the slabs from the backing arrays if possible
+		final LineReader reader = LineReader.create( img );
+
+		readSlab( reader, bufferMin, bufferMax, minZ - 1, previous );
+		readSlab( reader, bufferMin, bufferMax, minZ, current );
+		readSlab( reader, bufferMin, bufferMax, minZ + 1, next );
+
+		// the size of the interval in the dimensions of the slab
+		final int sizeX = (int)interior.dimension( 0 );
+		int numLines = 1;
+
+		for ( int d = 1; d < lastDim; ++d )
+			numLines *= (int)interior.dimension( d );
+
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+		final int[] position = new int[ n ];
+
+		// the sums of the squared central differences of one line
+		final double[] line = new double[ sizeX ];
+
+		// a LineConverter converts the whole line, which is then written into the
+		// backing arrays of the output, otherwise the converter is called per pixel
+		final LineConverter< ? > lineConverter = converter instanceof LineConverter ? ( LineConverter< ? > ) converter : null;
+		final LineWriter writer = lineConverter != null ? LineWriter.create( realType( gradientImg ) ) : null;
+		final long[] linePosition = new long[ n ];
+
+		// the sum of the squared central differences handed to the converter
+		final DoubleType squared = new DoubleType();
+
+		interior.min( min );
+		interior.max( max );
+
+		for ( long z = minZ; z <= maxZ; ++z )
+		{
+			// the output slab is iterated in flat order, i.e. line by line
+			min[ lastDim ] = max[ lastDim ] = z;
+			Cursor< S > cursor = writer == null ? Views.flatIterable( Views.interval( gradientImg, min, max ) ).cursor() : null;
+
+			for ( int d = 0; d < lastDim; ++d )
+				position[ d ] = 0;
+
+			for ( int line = 0; line < numLines; ++line )
+			{
+				// index of the first pixel of the line in the buffer,
+				// all positions are shifted by one because of the border
+				int base = 0;
+
+				for ( int d = 0; d < lastDim; ++d )
+					base += ( position[ d ] + 1 ) * stride[ d ];
+
+				for ( int x = 0; x < sizeX; ++x )
+				{
+					final int i = base + x;
+
+					// gradient in dimension 0, the neighbors in the line
+					double diff = current[ i + 1 ] - current[ i - 1 ];
+					double gradient = ( diff * diff ) / 4;
+
+					// gradient in all other dimensions of the slab
+					for ( int d = 1; d < lastDim; ++d )
+					{
+						diff = current[ i + stride[ d ] ] - current[ i - stride[ d ] ];
+						gradient += ( diff * diff ) / 4;
+					}
+
+					// gradient in the last dimension, the neighbors are in the
+					// previous and next slab
+					diff = next[ i ] - previous[ i ];
+					gradient += ( diff * diff ) / 4;
+
+					line[ x ] = gradient;
+				}
+
+				if ( writer != null )
+				{
+					// the first pixel of the line in the output
+					linePosition[ 0 ] = min[ 0 ];
+
+					for ( int d = 1; d < lastDim; ++d )
+						linePosition[ d ] = min[ d ] + position[ d ];
+
+					linePosition[ lastDim ] = z;
+
+					lineConverter.convert( line, sizeX );
+					writer.write( linePosition, line, 0, sizeX );
+				}
+				else
+				{
+					for ( int x = 0; x < sizeX; ++x )
+					{
+						squared.set( line[ x ] );
+						converter.convert( squared, cursor.next() );
+					}
+				}
+
+				// move to the next line of the slab
+				for ( int d = 1; d < lastDim; ++d )
+				{
+					if ( ++position[ d ] < interior.dimension( d ) )
+						break;
+
+					position[ d ] = 0;
+				}
+			}
+
+			// roll the buffers, the slab that drops out is reused for the next one
+			if ( z < maxZ )
+			{
+				final double[] tmp = previous;
+				previous = current;
+				current = next;
+				next = tmp;
+
+				readSlab( reader, bufferMin, bufferMax, z + 2, next );
+			}
+		}
+	}
+
+	/**
+	 * Reads one slab at position z of the last dimension into the buffer line by
+	 * line, so that dimension 0 is the fastest
+	 */
+	protected static void readSlab( LineReader reader, long[] min, long[] max, long z, double[] buffer )
+	{
+		final int lastDim = min.length - 1;
+		final int sizeX = (int)( max[ 0 ] - min[ 0 ] + 1 );
+
+		final long[] position = min.clone();
+		position[ lastDim ] = z;
+
+		for ( int offset = 0; offset < buffer.length; offset += sizeX )
+		{
+			reader.read( position, buffer, offset, sizeX );
+
+			// move to the first pixel of the next line of the slab
+			for ( int d = 1; d < lastDim; ++d )
+			{
+				if ( ++position[ d ] <= max[ d ] )
+					break;
+
+				position[ d ] = min[ d ];
+			}
+		}
+	}
+
+	public static < T extends RealType< T >, S > void gradient( RandomAccessible< T > source, RandomAccessibleInterval< S > gradientImg, Converter< DoubleType, S > converter )
+	{
+		final int n = gradientImg.numDimensions();
+
+		// the sum of the squared central differences handed to the converter
+		final DoubleType squared = new DoubleType();
+
+		// create a localizing cursor on the GradientImg, it will iterate all pixels
+		// and is able to efficiently return its position at each pixel, at each
+		// pixel we will compute the gradient
+		Cursor< S > cursor = Views.iterable( gradientImg ).localizingCursor();
+
+		// instantiate a RandomAccess on the source, it will be used to
+		// compute the gradient locally at each pixel location
+		RandomAccess< T > randomAccess = source.randomAccess();
+
+		// iterate over all pixels
+		while ( cursor.hasNext() )
+		{
+			// move the cursor to the next pixel
+			cursor.fwd();
+
+			// compute gradient in each dimension
+			double gradient = 0;
+
+			for ( int d = 0; d < n; ++d )
+			{
+				// set the randomaccess to the location of the cursor
+				randomAccess.setPosition( cursor );
+
+				// move one pixel back in dimension d
+				randomAccess.bck( d );
+
+				// get the value
+				double v1 = randomAccess.get().getRealDouble();
+
+				// move twice forward in dimension d, i.e.
+				// one pixel above the location of the cursor
+				randomAccess.fwd( d );
+				randomAccess.fwd( d );
+
+				// get the value
+				double v2 = randomAccess.get().getRealDouble();
+
+				// add the square of the magnitude of the gradient
+				gradient += ((v2 - v1) * (v2 - v1))/4;
+			}
+
+			// the converter computes the output from the sum of squares,
+			// e.g. the magnitude of the gradient at this location
+			squared.set( gradient );
+			converter.convert( squared, cursor.get() );
+		}
+	}
+
+	/**
+	 * @return a Converter that sets the magnitude of the gradient, the square root of all quadratic sums
+	 */
+	public static < S extends RealType< S > > Converter< DoubleType, S > magnitude()
+	{
+		return new LineConverter< S >()
+		{
+			public void convert( DoubleType squared, S output )
+			{
+				output.setReal( Math.sqrt( squared.get() ) );
+			}
+
+			public void convert( final double[] line, final int length )
+			{
+				for ( int x = 0; x < length; ++x )
+					line[ x ] = Math.sqrt( line[ x ] );
+			}
+		};
+	}
+
+	/**
+	 * A Converter into a RealType that can also convert a whole line of sums of squared
+	 * central differences into the real values of the output pixels. The loop over
+	 * the line is part of every implementation, so it only sees a single conversion.
+	 */
+	public static abstract class LineConverter< S extends RealType< S > > implements Converter< DoubleType, S >
+	{
+		/**
+		 * Replaces the first length sums of the line by the values that
+		 * {@link #convert(DoubleType, RealType)} would set
+		 */
+		public abstract void convert( double[] line, int length );
+	}
+
+	@SuppressWarnings( "unchecked" )
+	protected static < S extends RealType< S > > RandomAccessibleInterval< S > realType( RandomAccessibleInterval< ? > img )
+	{
+		return ( RandomAccessibleInterval< S > ) img;
+	}
+
+	/**
+	 * @return the interval without its one-pixel shell, or null if it is empty
+	 */
+	public static FinalInterval interior( Interval interval )
+	{
+		final int n = interval.numDimensions();
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			min[ d ] = interval.min( d ) + 1;
+			max[ d ] = interval.max( d ) - 1;
+
+			if ( min[ d ] > max[ d ] )
+				return null;
+		}
+
+		return new FinalInterval( min, max );
+	}
+
+	/**
+	 * Splits the one-pixel shell of an interval into non-overlapping faces.
+	 * Face d contains the pixels at the lower or upper end of dimension d,
+	 * restricted to the interior in all dimensions before d. Every face is
+	 * intersected with the block, empty intersections are left out.
+	 */
+	public static List< FinalInterval > border( Interval interval, Interval block )
+	{
+		final int n = interval.numDimensions();
+		final List< FinalInterval > faces = new ArrayList< FinalInterval >();
+
+		for ( int d = 0; d < n; ++d )
+		{
+			final long[] min = new long[ n ];
+			final long[] max = new long[ n ];
+
+			interval.min( min );
+			interval.max( max );
+
+			// all pixels that are at the border in one of the dimensions
+			// before d are already part of an earlier face
+			for ( int e = 0; e < d; ++e )
+			{
+				++min[ e ];
+				--max[ e ];
+
+				if ( min[ e ] > max[ e ] )
+					return faces;
+			}
+
+			// lower face
+			final long lower = interval.min( d );
+			final long upper = interval.max( d );
+
+			min[ d ] = max[ d ] = lower;
+			add( faces, intersect( new FinalInterval( min, max ), block ) );
+
+			// upper face, only if it is not the same as the lower one
+			if ( upper != lower )
+			{
+				min[ d ] = max[ d ] = upper;
+				add( faces, intersect( new FinalInterval( min, max ), block ) );
+			}
+		}
+
+		return faces;
+	}
+
+	/**
+	 * @return the intersection of both intervals, or null if one of them is null or they do not overlap
+	 */
+	public static FinalInterval intersect( Interval a, Interval b )
+	{
+		if ( a == null || b == null )
+			return null;
+
+		final int n = a.numDimensions();
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			min[ d ] = Math.max( a.min( d ), b.min( d ) );
+			max[ d ] = Math.min( a.max( d ), b.max( d ) );
+
+			if ( min[ d ] > max[ d ] )
+				return null;
+		}
+
+		return new FinalInterval( min, max );
+	}
+
+	private static void add( List< FinalInterval > faces, FinalInterval face )
+	{
+		if ( face != null )
+			faces.add( face );
+	}
+}
@@ -0,0 +1,509 @@
+package net.imglib2.introduction;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.imglib2.Cursor;
+import net.imglib2.IterableInterval;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * A histogram of an image computed in one multi-threaded pass, every task counts
+ * its part of the image into its own long[] and the bins are summed up at the end.
+ * Integer types of up to 16 bits have one bin per value over the range of the type,
+ * for all other types the range is the minimum and maximum of the image split into
+ * 256 bins. The minimum and maximum are not known before the pass, so the tasks
+ * count into finer bins that grow with the values (see {@link FineBins}) and these
+ * are distributed into the 256 bins at the end. Pixels close to the boundary of
+ * two bins can end up in the neighboring bin, NaN and infinite values are not counted.
+ *
+ * The automatic thresholds (Otsu, Triangle, percentile) return the value t such
+ * that all pixels larger than t are foreground, i.e. they can be passed to the
+ * threshold methods of the examples.
+ */
+public class Histogram
+{
+	// the number of bins for floating point types and integer types of more than 16 bits
+	final static int DEFAULT_BINS = 256;
+
+	// the number of bins counted during the pass for those types
+	final static int FINE_BINS = 4096;
+
+	final long[] bins;
+	final double min;
+	final double binWidth;
+	final boolean integer;
+
+	public Histogram( long[] bins, double min, double binWidth, boolean integer )
+	{
+		this.bins = bins;
+		this.min = min;
+		this.binWidth = binWidth;
+		this.integer = integer;
+	}
+
+	public long[] getBins()
+	{
+		return bins;
+	}
+
+	public int numBins()
+	{
+		return bins.length;
+	}
+
+	/**
+	 * @return the largest value that belongs to the bin, pixels larger than it are in higher bins
+	 */
+	public double upperBound( int bin )
+	{
+		if ( integer )
+			return min + ( bin + 1 ) * binWidth - 1;
+		else
+			return min + ( bin + 1 ) * binWidth;
+	}
+
+	public static < T extends RealType< T > > Histogram compute( IterableInterval< T > img, int numThreads ) throws InterruptedException, ExecutionException
+	{
+		// a single thread does not need a thread pool, e.g. when the
+		// images are already processed in parallel
+		if ( numThreads <= 1 )
+			return compute( img, null, 1 );
+
+		// create a thread pool that is only used for this histogram
+		ExecutorService service = Executors.newFixedThreadPool( numThreads );
+
+		try
+		{
+			return compute( img, service, numThreads );
+		}
+		finally
+		{
+			service.shutdown();
+		}
+	}
+
+	/**
+	 * Computes the histogram, the pixels are split into numChunks chunks of the
+	 * iteration order, each chunk is counted by its own task. If the service is null,
+	 * the tasks run in the calling thread.
+	 */
+	public static < T extends RealType< T > > Histogram compute( final IterableInterval< T > img, ExecutorService service, int numChunks ) throws InterruptedException, ExecutionException
+	{
+		final T type = img.firstElement();
+		final boolean integer = type instanceof IntegerType;
+
+		final long size = img.size();
+		final long chunkSize = Math.max( 1, ( size + numChunks - 1 ) / numChunks );
+
+		if ( integer && type.getBitsPerPixel() <= 16 )
+		{
+			// one bin per value of the type
+			final double min = type.getMinValue();
+			final int numBins = (int)( type.getMaxValue() - type.getMinValue() + 1 );
+
+			final List< Callable< long[] > > tasks = new ArrayList< Callable< long[] > >();
+
+			for ( long start = 0; start < size; start += chunkSize )
+			{
+				final long first = start;
+				final long count = Math.min( chunkSize, size - start );
+
+				tasks.add( new Callable< long[] >()
+				{
+					public long[] call()
+					{
+						// the bins of this chunk
+						final long[] bins = new long[ numBins ];
+						final Cursor< T > cursor = img.cursor();
+						cursor.jumpFwd( first );
+
+						for ( long i = 0; i < count; ++i )
+							++bins[ (int)( cursor.next().getRealDouble() - min ) ];
+
+						return bins;
+					}
+				});
+			}
+
+			// sum up the bins of all chunks
+			final long[] bins = new long[ numBins ];
+
+			for ( final long[] partial : run( service, tasks ) )
+			{
+				for ( int b = 0; b < numBins; ++b )
+					bins[ b ] += partial[ b ];
+			}
+
+			return new Histogram( bins, min, 1, integer );
+		}
+		else
+		{
+			// the fine bins and the minimum and maximum of every chunk in one pass
+			final List< Callable< FineBins > > tasks = new ArrayList< Callable< FineBins > >();
+
+			for ( long start = 0; start < size; start += chunkSize )
+			{
+				final long first = start;
+				final long count = Math.min( chunkSize, size - start );
+
+				tasks.add( new Callable< FineBins >()
+				{
+					public FineBins call()
+					{
+						final FineBins bins = new FineBins();
+						final Cursor< T > cursor = img.cursor();
+						cursor.jumpFwd( first );
+
+						for ( long i = 0; i < count; ++i )
+							bins.add( cursor.next().getRealDouble() );
+
+						return bins;
+					}
+				});
+			}
+
+			// merge the fine bins of all chunks
+			final FineBins bins = new FineBins();
+
+			for ( final FineBins partial : run( service, tasks ) )
+				bins.add( partial );
+
+			return bins.histogram( DEFAULT_BINS, integer );
+		}
+	}
+
+	/**
+	 * Runs all tasks and waits until they are finished, a failure in any of them is
+	 * passed on as ExecutionException
+	 *
+	 * @return the results in the order of the tasks
+	 */
+	protected static < V > List< V > run( ExecutorService service, List< Callable< V > > tasks ) throws InterruptedException, ExecutionException
+	{
+		final List< V > results = new ArrayList< V >();
+
+		if ( service == null )
+		{
+			for ( final Callable< V > task : tasks )
+			{
+				try
+				{
+					results.add( task.call() );
+				}
+				catch ( Exception e )
+				{
+					throw new ExecutionException( e );
+				}
+			}
+		}
+		else
+		{
+			for ( Future< V > future : service.invokeAll( tasks ) )
+				results.add( future.get() );
+		}
+
+		return results;
+	}
+
+	/**
+	 * The histogram of a chunk of an image together with its exact minimum and maximum.
+	 * The FINE_BINS bins have a width that is a power of two and start at multiples of
+	 * it. The width starts at the precision of a float at the first value, when a value
+	 * does not fit into the bins their width is doubled until it does and the counts
+	 * are merged. Every bin of a smaller width lies completely in a bin of a larger
+	 * width, so the fine bins of all chunks can be merged exactly.
+	 */
+	protected static class FineBins
+	{
+		final long[] counts = new long[ FINE_BINS ];
+
+		// the width of the bins (0 until the first value), its inverse and the
+		// index of the first bin in multiples of the width
+		double width = 0;
+		double scale = 0;
+		double start = 0;
+
+		double min = Double.MAX_VALUE;
+		double max = -Double.MAX_VALUE;
+
+		public void add( final double value )
+		{
+			if ( Double.isNaN( value ) || Double.isInfinite( value ) )
+				return;
+
+			if ( width == 0 )
+			{
+				width = Math.ulp( (float)value );
+				scale = 1.0 / width;
+				start = Math.floor( value * scale ) - FINE_BINS / 2;
+			}
+
+			double index = Math.floor( value * scale ) - start;
+
+			if ( index < 0 || index >= FINE_BINS )
+			{
+				fit( value, value, width );
+				index = Math.floor( value * scale ) - start;
+			}
+
+			++counts[ (int)index ];
+
+			if ( value < min )
+				min = value;
+
+			if ( value > max )
+				max = value;
+		}
+
+		/**
+		 * Adds the counts of another chunk
+		 */
+		public void add( final FineBins other )
+		{
+			if ( other.width == 0 )
+				return;
+
+			if ( width == 0 )
+			{
+				System.arraycopy( other.counts, 0, counts, 0, FINE_BINS );
+				width = other.width;
+				scale = other.scale;
+				start = other.start;
+				min = other.min;
+				max = other.max;
+
+				return;
+			}
+
+			fit( other.min, other.max, other.width );
+
+			// the bins of the other chunk are at most as wide, each of them lies in one of our bins
+			for ( int b = 0; b < FINE_BINS; ++b )
+				if ( other.counts[ b ] > 0 )
+					counts[ (int)( Math.floor( ( other.start + b ) * other.width * scale ) - start ) ] += other.counts[ b ];
+
+			min = Math.min( min, other.min );
+			max = Math.max( max, other.max );
+		}
+
+		/**
+		 * Doubles the width of the bins until they cover the current bins and the
+		 * values from low to high and are at least minWidth wide
+		 */
+		protected void fit( final double low, final double high, final double minWidth )
+		{
+			// the first and last bin that are needed in multiples of width * factor
+			double factor = 1;
+			double first, last;
+
+			while ( true )
+			{
+				first = Math.min( Math.floor( start / factor ), Math.floor( low * scale / factor ) );
+				last = Math.max( Math.floor( ( start + FINE_BINS - 1 ) / factor ), Math.floor( high * scale / factor ) );
+
+				if ( last - first < FINE_BINS && width * factor >= minWidth )
+					break;
+
+				factor *= 2;
+			}
+
+			if ( factor == 1 )
+				return;
+
+			// center the needed bins, so there is room to grow in both directions
+			final double newStart = first - Math.floor( ( FINE_BINS - 1 - ( last - first ) ) / 2 );
+			final long[] merged = new long[ FINE_BINS ];
+
+			for ( int b = 0; b < FINE_BINS; ++b )
+				if ( counts[ b ] > 0 )
+					merged[ (int)( Math.floor( ( start + b ) / factor ) - newStart ) ] += counts[ b ];
+
+			System.arraycopy( merged, 0, counts, 0, FINE_BINS );
+
+			width *= factor;
+			scale = 1.0 / width;
+			start = newStart;
+		}
+
+		/**
+		 * Distributes the fine bins into numBins bins from the minimum to the maximum,
+		 * the values of a fine bin are assumed to be at its start. Integer values (also
+		 * in a FloatType, e.g. 8 or 16-bit images) are exactly there while the fine bins
+		 * are at most 1 wide.
+		 */
+		public Histogram histogram( int numBins, boolean integer )
+		{
+			// no value was counted
+			if ( width == 0 )
+				return new Histogram( new long[ numBins ], 0, 1, integer );
+
+			final double binWidth;
+
+			// integer bins must cover whole values, the last bin must contain the maximum
+			if ( integer )
+				binWidth = Math.max( 1, Math.ceil( ( max - min + 1 ) / numBins ) );
+			else
+				binWidth = max > min ? ( max - min ) / numBins : 1;
+
+			final long[] bins = new long[ numBins ];
+
+			for ( int b = 0; b < FINE_BINS; ++b )
+			{
+				if ( counts[ b ] == 0 )
+					continue;
+
+				final double left = ( start + b ) * width;
+				final double value = Math.max( min, Math.min( max, left ) );
+				final int bin = (int)( ( value - min ) / binWidth );
+
+				bins[ Math.min( numBins - 1, bin ) ] += counts[ b ];
+			}
+
+			return new Histogram( bins, min, binWidth, integer );
+		}
+	}
+
+	/**
+	 * @param method - "otsu", "triangle" or a percentile, e.g. "p99.5"
+	 */
+	public double threshold( String method )
+	{
+		if ( method.equals( "otsu" ) )
+			return otsu();
+		else if ( method.equals( "triangle" ) )
+			return triangle();
+		else if ( method.startsWith( "p" ) )
+			return percentile( Double.parseDouble( method.substring( 1 ) ) );
+		else
+			throw new IllegalArgumentException( "Unknown threshold method: " + method );
+	}
+
+	/**
+	 * Otsu's method, maximizes the variance between the background (up to and including
+	 * the threshold) and the foreground
+	 */
+	public double otsu()
+	{
+		long total = 0;
+		double sum = 0;
+
+		for ( int b = 0; b < bins.length; ++b )
+		{
+			total += bins[ b ];
+			sum += (double)b * bins[ b ];
+		}
+
+		long background = 0;
+		double sumBackground = 0;
+		double maxVariance = -1;
+		int best = 0;
+
+		for ( int b = 0; b < bins.length - 1; ++b )
+		{
+			background += bins[ b ];
+			sumBackground += (double)b * bins[ b ];
+
+			final long foreground = total - background;
+
+			if ( background == 0 || foreground == 0 )
+				continue;
+
+			final double meanBackground = sumBackground / background;
+			final double meanForeground = ( sum - sumBackground ) / foreground;
+			final double variance = (double)background * foreground * ( meanBackground - meanForeground ) * ( meanBackground - meanForeground );
+
+			if ( variance > maxVariance )
+			{
+				maxVariance = variance;
+				best = b;
+			}
+		}
+
+		return upperBound( best );
+	}
+
+	/**
+	 * The triangle method, the threshold is the bin that is farthest from the line
+	 * between the peak of the histogram and the end of the longer tail
+	 */
+	public double triangle()
+	{
+		// the first and last non-empty bin and the peak
+		int first = -1, last = -1, peak = 0;
+
+		for ( int b = 0; b < bins.length; ++b )
+		{
+			if ( bins[ b ] > 0 )
+			{
+				if ( first == -1 )
+					first = b;
+
+				last = b;
+			}
+
+			if ( bins[ b ] > bins[ peak ] )
+				peak = b;
+		}
+
+		if ( first == -1 )
+			return upperBound( 0 );
+
+		// the end of the longer tail
+		final int end = peak - first > last - peak ? first : last;
+
+		if ( end == peak )
+			return upperBound( peak );
+
+		// the distance of every bin from the line from (peak, bins[peak]) to (end, bins[end]),
+		// up to a constant factor
+		final double dx = end - peak;
+		final double dy = bins[ end ] - bins[ peak ];
+
+		double maxDistance = -1;
+		int best = peak;
+
+		for ( int b = Math.min( peak, end ); b <= Math.max( peak, end ); ++b )
+		{
+			final double distance = Math.abs( dy * ( b - peak ) - dx * ( bins[ b ] - bins[ peak ] ) );
+
+			if ( distance > maxDistance )
+			{
+				maxDistance = distance;
+				best = b;
+			}
+		}
+
+		return upperBound( best );
+	}
+
+	/**
+	 * @return the threshold such that (at least) the given percentage of pixels is background
+	 */
+	public double percentile( double percent )
+	{
+		long total = 0;
+
+		for ( long count : bins )
+			total += count;
+
+		final double target = total * percent / 100.0;
+		long cumulative = 0;
+
+		for ( int b = 0; b < bins.length; ++b )
+		{
+			cumulative += bins[ b ];
+
+			if ( cumulative >= target )
+				return upperBound( b );
+		}
+
+		return upperBound( bins.length - 1 );
+	}
+}
@@ -0,0 +1,337 @@
+package net.imglib2.introduction;
+
+import ij.IJ;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import mpicbg.models.NoninvertibleModelException;
+import mpicbg.models.RigidModel2D;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Runs one of the operations of the examples on a list of files and/or
+ * directories without ImageJ GUI, e.g. on a compute node:
+ *
+ *   java net.imglib2.introduction.ImgLib2_Batch threshold|gradient|centerofmass|transform outputDir numThreads input...
+ *
+ * The files are loaded ahead on background threads by a {@link PrefetchingImgLoader},
+ * numThreads tasks process and write them at the same time so that loading and
+ * writing of some files overlaps with the computation on others. Images are written
+ * as TIFF, the center of mass as text. The time of every file and the total
+ * throughput are printed to stdout.
+ *
+ * The threshold is 100 or set by the system property batch.threshold, either a
+ * value or one of the automatic methods of {@link Histogram}, e.g. -Dbatch.threshold=otsu.
+ */
+public class ImgLib2_Batch
+{
+	public static void main( String[] args ) throws InterruptedException
+	{
+		if ( args.length < 4 )
+		{
+			System.out.println( "usage: ImgLib2_Batch threshold|gradient|centerofmass|transform outputDir numThreads input..." );
+			System.exit( 1 );
+		}
+
+		final List< File > files = new ArrayList< File >();
+
+		for ( int i = 3; i < args.length; ++i )
+			files.addAll( listFiles( new File( args[ i ] ) ) );
+
+		final boolean success = new ImgLib2_Batch().run( args[ 0 ], new File( args[ 1 ] ), files, Integer.parseInt( args[ 2 ] ) );
+
+		System.exit( success ? 0 : 1 );
+	}
+
+	// the timing of one file
+	public static class Result
+	{
+		public final File file;
+		public final long numPixels;
+		public final long loadNanos, computeNanos, writeNanos;
+
+		public Result( File file, long numPixels, long loadNanos, long computeNanos, long writeNanos )
+		{
+			this.file = file;
+			this.numPixels = numPixels;
+			this.loadNanos = loadNanos;
+			this.computeNanos = computeNanos;
+			this.writeNanos = writeNanos;
+		}
+
+		public String toString()
+		{
+			return file.getName() + ": " + numPixels + " px, load " + ms( loadNanos ) + " ms, compute " + ms( computeNanos ) + " ms, write " + ms( writeNanos ) + " ms";
+		}
+	}
+
+	/**
+	 * Applies the operation to all files, the results are written into the output
+	 * directory using the name of the input file. The files are loaded ahead by
+	 * numThreads / 2 background threads, at most 2 * numThreads images or a quarter
+	 * of the maximal heap size, which can be changed using the system properties
+	 * batch.prefetch (number of images) and batch.prefetchMB.
+	 *
+	 * @return true if all files were processed
+	 * @throws IllegalArgumentException if two files would write results with the same name
+	 */
+	public boolean run( final String operation, final File outputDir, List< File > files, int numThreads ) throws InterruptedException
+	{
+		final int maxImages = Integer.getInteger( "batch.prefetch", 2 * numThreads );
+		final long maxBytes = Long.getLong( "batch.prefetchMB", Runtime.getRuntime().maxMemory() / 4 / 1024 / 1024 ) * 1024 * 1024;
+
+		return run( operation, outputDir, files, numThreads, Math.max( 1, numThreads / 2 ), maxImages, maxBytes );
+	}
+
+	public boolean run( final String operation, final File outputDir, List< File > files, final int numThreads, int numLoaderThreads, int maxImages, long maxBytes ) throws InterruptedException
+	{
+		if ( !Arrays.asList( "threshold", "gradient", "centerofmass", "transform" ).contains( operation ) )
+			throw new IllegalArgumentException( "Unknown operation: " + operation );
+
+		// all results are written into the same directory, two files with the same
+		// name (e.g. from different input directories) would overwrite each other
+		final HashMap< String, File > outputs = new HashMap< String, File >();
+
+		for ( final File file : files )
+		{
+			final File other = outputs.put( baseName( file ), file );
+
+			if ( other != null )
+				throw new IllegalArgumentException( "The results of " + other + " and " + file + " would have the same name in " + outputDir );
+		}
+
+		outputDir.mkdirs();
+
+		final long start = System.nanoTime();
+
+		// load the images as FloatType using the ArrayImg in the background
+		final PrefetchingImgLoader< FloatType > loader = new PrefetchingImgLoader< FloatType >( files, new ArrayImgFactory< FloatType >(), new FloatType(), numLoaderThreads, maxImages, maxBytes );
+
+		// create a thread pool that is only used for this batch
+		ExecutorService service = Executors.newFixedThreadPool( numThreads );
+
+		// one task per file, each task processes the next image that is loaded
+		final List< Callable< Result > > tasks = new ArrayList< Callable< Result > >();
+
+		for ( int i = 0; i < files.size(); ++i )
+		{
+			tasks.add( new Callable< Result >()
+			{
+				public Result call() throws Exception
+				{
+					final PrefetchingImgLoader.Loaded< FloatType > image = loader.take();
+
+					try
+					{
+						if ( image.error != null )
+							throw new IOException( "Cannot load " + image.file.getName() + ": " + image.error, image.error );
+
+						// the files are already processed in parallel, so every file is
+						// processed single-threaded (including the automatic threshold)
+						final Result result = process( operation, image, outputDir );
+						System.out.println( result );
+						return result;
+					}
+					finally
+					{
+						loader.release( image );
+					}
+				}
+			});
+		}
+
+		long numPixels = 0;
+		int numFailed = 0;
+
+		try
+		{
+			for ( Future< Result > future : service.invokeAll( tasks ) )
+			{
+				try
+				{
+					numPixels += future.get().numPixels;
+				}
+				catch ( ExecutionException e )
+				{
+					System.out.println( "Failed: " + e.getCause() );
+					++numFailed;
+				}
+			}
+		}
+		finally
+		{
+			service.shutdown();
+			loader.close();
+		}
+
+		final long time = System.nanoTime() - start;
+
+		System.out.println( "Processed " + ( files.size() - numFailed ) + " of " + files.size() + " files, " + numPixels + " px in " + ms( time ) + " ms (" + String.format( "%.1f", numPixels / ( time / 1e9 ) / 1e6 ) + " Mpx/s) using " + numThreads + " threads" );
+
+		// the statistics of all kernels that were used
+		if ( KernelStats.ENABLED )
+			for ( KernelStats stats : KernelStats.kernels.values() )
+				System.out.println( stats );
+
+		return numFailed == 0;
+	}
+
+	/**
+	 * Processes and writes one loaded image
+	 */
+	public Result process( String operation, PrefetchingImgLoader.Loaded< FloatType > image, File outputDir ) throws IOException, NoninvertibleModelException, InterruptedException, ExecutionException
+	{
+		long time = System.nanoTime();
+
+		final Object result = compute( operation, image.img );
+
+		final long computeNanos = System.nanoTime() - time;
+		time = System.nanoTime();
+
+		write( result, new File( outputDir, baseName( image.file ) + "_" + operation ) );
+
+		final long writeNanos = System.nanoTime() - time;
+
+		return new Result( image.file, image.img.size(), image.loadNanos, computeNanos, writeNanos );
+	}
+
+	/**
+	 * Runs the operation single-threaded, the files are processed in parallel
+	 *
+	 * @return an Img or a double[]
+	 */
+	public <T extends RealType<T>> Object compute( String operation, Img< T > img ) throws NoninvertibleModelException, InterruptedException, ExecutionException
+	{
+		return compute( operation, img, 1 );
+	}
+
+	/**
+	 * Runs the operation single-threaded, except for the histogram of the automatic
+	 * threshold that uses numThreads threads, so that it costs less than the threshold.
+	 * With one thread the histogram is computed in the calling thread.
+	 *
+	 * @return an Img or a double[]
+	 */
+	public <T extends RealType<T>> Object compute( String operation, Img< T > img, int numThreads ) throws NoninvertibleModelException, InterruptedException, ExecutionException
+	{
+		if ( operation.equals( "threshold" ) )
+		{
+			// a fixed value (100 like ImgLib2_Threshold4.process()) or an automatic threshold
+			final String value = System.getProperty( "batch.threshold", "100" );
+			final ImgLib2_Threshold4 threshold4 = new ImgLib2_Threshold4();
+
+			T threshold;
+
+			if ( Character.isDigit( value.charAt( 0 ) ) || value.charAt( 0 ) == '-' )
+			{
+				threshold = img.firstElement().createVariable();
+				threshold.setReal( Double.parseDouble( value ) );
+			}
+			else
+			{
+				threshold = threshold4.autoThreshold( img, value, numThreads );
+			}
+
+			return threshold4.threshold( img, threshold );
+		}
+		else if ( operation.equals( "gradient" ) )
+		{
+			return new ImgLib2_Gradient3().gradient( img );
+		}
+		else if ( operation.equals( "centerofmass" ) )
+		{
+			return new ImgLib2_CenterOfMass2().centerOfMass( img );
+		}
+		else
+		{
+			// same transformation as ImgLib2_Transform.process()
+			RigidModel2D model = new RigidModel2D();
+			model.set( (float)Math.toRadians( 15 ),  0, 0 );
+
+			return new ImgLib2_Transform().transform( img, model );
+		}
+	}
+
+	/**
+	 * Writes an Img as TIFF and a double[] as text file
+	 */
+	@SuppressWarnings( { "rawtypes", "unchecked" } )
+	protected void write( Object result, File file ) throws IOException
+	{
+		if ( result instanceof Img )
+		{
+			if ( !IJ.saveAsTiff( ImageJFunctions.wrap( ( Img ) result, file.getName() ), file.getAbsolutePath() + ".tif" ) )
+				throw new IOException( "Cannot write " + file + ".tif" );
+		}
+		else
+		{
+			final PrintWriter out = new PrintWriter( new FileWriter( file.getAbsolutePath() + ".txt" ) );
+
+			try
+			{
+				for ( double value : ( double[] ) result )
+					out.println( value );
+			}
+			finally
+			{
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 * @return the file itself or all files in the directory (sorted by name, not recursive)
+	 */
+	public static List< File > listFiles( File file )
+	{
+		final List< File > files = new ArrayList< File >();
+
+		if ( file.isDirectory() )
+		{
+			final File[] list = file.listFiles();
+			Arrays.sort( list );
+
+			for ( File f : list )
+				if ( f.isFile() && !f.isHidden() )
+					files.add( f );
+		}
+		else
+		{
+			files.add( file );
+		}
+
+		return files;
+	}
+
+	/**
+	 * @return the name of the file without the extension
+	 */
+	protected static String baseName( File file )
+	{
+		final String name = file.getName();
+		final int dot = name.lastIndexOf( '.' );
+
+		return dot > 0 ? name.substring( 0, dot ) : name;
+	}
+
+	protected static long ms( long nanos )
+	{
+		return nanos / 1000000;
+	}
+}
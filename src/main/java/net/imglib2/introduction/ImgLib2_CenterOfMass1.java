@@ -60,6 +60,8 @@ public class ImgLib2_CenterOfMass1 implements PlugIn
 
 	public <T extends RealType<T>> double[] centerOfMass2d( Img< T > img )
 	{
+		final KernelStats.Timer timer = KernelStats.start();
+
 		// the center of mass (x,y)
 		double[] center = new double[ 2 ];
 		
@@ -101,6 +103,8 @@ public class ImgLib2_CenterOfMass1 implements PlugIn
 		center[ 0 ] = sumX / sumI;
 		center[ 1 ] = sumY / sumI;
 
+		KernelStats.stop( "centerOfMass1", img, timer );
+
 		return center;
 	}
 }
\ No newline at end of file
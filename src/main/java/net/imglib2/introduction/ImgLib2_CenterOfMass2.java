@@ -5,18 +5,32 @@ import ij.ImageJ;
 import ij.ImagePlus;
 import ij.WindowManager;
 import ij.plugin.PlugIn;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import net.imglib2.Cursor;
 import net.imglib2.img.Img;
 import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.iterator.LocalizingIntervalIterator;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Util;
 
 /**
- * Compute the center of mass of the image in N dimensions
+ * Compute the center of mass of the image in N dimensions, either with a
+ * single cursor or multi-threaded using compensated summation
  */
 public class ImgLib2_CenterOfMass2 implements PlugIn
 {
+	// the approximate number of lines that one task sums up
+	final static long LINES_PER_CHUNK = 1024;
+
 	public static void main( String[] args )
 	{
 		new ImageJ();
@@ -58,10 +72,31 @@ public class ImgLib2_CenterOfMass2 implements PlugIn
 
 		// print out center of mass into the ImageJ log window
 		IJ.log( "Center of mass = " + Util.printCoordinates( center ) );
+
+		try
+		{
+			// compute it again using all available cores
+			center = centerOfMass( img, Runtime.getRuntime().availableProcessors() );
+
+			// print out center of mass into the ImageJ log window
+			IJ.log( "Center of mass (multi-threaded) = " + Util.printCoordinates( center ) );
+		}
+		catch ( InterruptedException e )
+		{
+			// keep the interrupt for the caller, e.g. the thread of the plugin
+			Thread.currentThread().interrupt();
+			IJ.log( "Center of mass computation was interrupted: " + e );
+		}
+		catch ( ExecutionException e )
+		{
+			IJ.log( "Center of mass computation failed: " + e.getCause() );
+		}
 	}
 
 	public <T extends RealType<T>> double[] centerOfMass( Img< T > img )
 	{
+		final KernelStats.Timer timer = KernelStats.start();
+
 		// the center of mass in n dimensions,
 		// same amount of dimensions as the image
 		double[] center = new double[ img.numDimensions() ];
@@ -97,6 +132,170 @@ public class ImgLib2_CenterOfMass2 implements PlugIn
 		for ( int d = 0; d < img.numDimensions(); ++d )
 			center[ d ] = sumDim[ d ] / sumI;
 
+		KernelStats.stop( "centerOfMass2", img, timer );
+
 		return center;
 	}
+
+	public <T extends RealType<T>> double[] centerOfMass( Img< T > img, int numThreads ) throws InterruptedException, ExecutionException
+	{
+		// create a thread pool that is only used for this computation
+		ExecutorService service = Executors.newFixedThreadPool( numThreads );
+
+		try
+		{
+			return centerOfMass( img, service );
+		}
+		finally
+		{
+			service.shutdown();
+		}
+	}
+
+	/**
+	 * Computes the center of mass using compensated summation. The image is split
+	 * into chunks along the last dimension (groups of lines in 2d, of planes in 3d)
+	 * of about {@link #LINES_PER_CHUNK} lines, every chunk computes its own partial
+	 * sums. The partial sums are merged in the order of the chunks, so the result
+	 * does not depend on the number of threads.
+	 */
+	public <T extends RealType<T>> double[] centerOfMass( final Img< T > img, final ExecutorService service ) throws InterruptedException, ExecutionException
+	{
+		final KernelStats.Timer timer = KernelStats.start();
+
+		final int n = img.numDimensions();
+		final int lastDim = n - 1;
+
+		// in 1d the whole image is a single chunk
+		final long minZ = n > 1 ? img.min( lastDim ) : 0;
+		final long maxZ = n > 1 ? img.max( lastDim ) : 0;
+
+		// the number of lines of one slab along the last dimension
+		long linesPerSlab = 1;
+
+		for ( int d = 1; d < lastDim; ++d )
+			linesPerSlab *= img.dimension( d );
+
+		// a fixed chunk size, it must not depend on the number of threads
+		final long slabsPerChunk = Math.max( 1, LINES_PER_CHUNK / linesPerSlab );
+
+		// one task per chunk
+		final List< Callable< CompensatedSum[] > > tasks = new ArrayList< Callable< CompensatedSum[] > >();
+
+		for ( long z = minZ; z <= maxZ; z += slabsPerChunk )
+		{
+			final long chunkMin = z;
+			final long chunkMax = Math.min( maxZ, z + slabsPerChunk - 1 );
+
+			tasks.add( new Callable< CompensatedSum[] >()
+			{
+				public CompensatedSum[] call()
+				{
+					return centerOfMassSums( img, chunkMin, chunkMax );
+				}
+			});
+		}
+
+		// the sums of the location weighted by the intensity for n dimensions,
+		// and the sum of all intensities at index n
+		final CompensatedSum[] sums = newSums( n + 1 );
+
+		// merge the partial sums in the order of the chunks
+		for ( Future< CompensatedSum[] > future : service.invokeAll( tasks ) )
+		{
+			final CompensatedSum[] partial = future.get();
+
+			for ( int d = 0; d <= n; ++d )
+				sums[ d ].add( partial[ d ] );
+		}
+
+		// compute center of mass for all dimensions
+		double[] center = new double[ n ];
+
+		for ( int d = 0; d < n; ++d )
+			center[ d ] = sums[ d ].get() / sums[ n ].get();
+
+		KernelStats.stop( "centerOfMass2", img, timer );
+
+		return center;
+	}
+
+	/**
+	 * Computes the partial sums of the chunk from chunkMin to chunkMax in the last
+	 * dimension line by line. Within a line only the sum of the intensities and the
+	 * sum weighted by the x-location are needed, all other coordinates are constant
+	 * and multiplied with the line sum.
+	 */
+	protected <T extends RealType<T>> CompensatedSum[] centerOfMassSums( Img< T > img, long chunkMin, long chunkMax )
+	{
+		final int n = img.numDimensions();
+		final int lastDim = n - 1;
+
+		final CompensatedSum[] sums = newSums( n + 1 );
+
+		// iterate the first pixel of every line of the chunk
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+
+		img.min( min );
+		img.max( max );
+
+		max[ 0 ] = min[ 0 ];
+
+		if ( n > 1 )
+		{
+			min[ lastDim ] = chunkMin;
+			max[ lastDim ] = chunkMax;
+		}
+
+		final LocalizingIntervalIterator lines = new LocalizingIntervalIterator( min, max );
+		final long[] position = new long[ n ];
+
+		// copies the lines from the backing arrays if possible, so the
+		// loop below only sees doubles whatever the type of the image
+		final LineReader reader = LineReader.create( img );
+
+		final long minX = img.min( 0 );
+		final int sizeX = (int)img.dimension( 0 );
+		final double[] line = new double[ sizeX ];
+
+		while ( lines.hasNext() )
+		{
+			lines.fwd();
+			lines.localize( position );
+			reader.read( position, line, 0, sizeX );
+
+			// the sums of one line
+			double sumI = 0;
+			double sumX = 0;
+
+			for ( int x = 0; x < sizeX; ++x )
+			{
+				// intensity of the pixel
+				final double i = line[ x ];
+
+				sumI += i;
+				sumX += ( minX + x ) * i;
+			}
+
+			sums[ 0 ].add( sumX );
+
+			for ( int d = 1; d < n; ++d )
+				sums[ d ].add( lines.getLongPosition( d ) * sumI );
+
+			sums[ n ].add( sumI );
+		}
+
+		return sums;
+	}
+
+	protected static CompensatedSum[] newSums( int size )
+	{
+		final CompensatedSum[] sums = new CompensatedSum[ size ];
+
+		for ( int i = 0; i < size; ++i )
+			sums[ i ] = new CompensatedSum();
+
+		return sums;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,341 @@
+package net.imglib2.introduction;
+
+import ij.IJ;
+import ij.ImageJ;
+import ij.ImagePlus;
+import ij.WindowManager;
+import ij.plugin.PlugIn;
+
+import java.util.Arrays;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Compute the center of mass, the sum of intensities and the number of pixels
+ * of every connected object in a thresholded image in N dimensions, using a
+ * single pass over the image
+ */
+public class ImgLib2_CenterOfMass3 implements PlugIn
+{
+	public static void main( String[] args )
+	{
+		new ImageJ();
+		new ImgLib2_CenterOfMass3().run( null );
+	}
+
+	public void run(String arg0)
+	{
+		// get the current ImageJ ImagePlus
+		ImagePlus imp = WindowManager.getCurrentImage();
+
+		// test if an image is open, otherwise load blobs
+		if ( imp == null )
+		{
+			imp = new ImagePlus( getClass().getResource( "/blobs.tif" ).getFile() );
+			imp.show();
+		}
+
+		// wrap it into an ImgLib2 Img (no copying)
+		Img<FloatType> img = ImageJFunctions.wrapFloat( imp );
+
+		// test if it could be wrapped
+		if ( img == null )
+		{
+			IJ.log( "Cannot wrap image" );
+			return;
+		}
+
+		// process wrapped image with ImgLib2
+		process( img );
+	}
+
+	public <T extends RealType<T>> void process( Img<T> img )
+	{
+		// define threshold
+		T threshold = img.firstElement().copy();
+		threshold.setReal( 100 );
+
+		// the objects are all connected pixels above the threshold
+		Img< BitType > mask = new ImgLib2_Threshold4().threshold( img, threshold );
+
+		// compute the statistics of all objects
+		ObjectStatistics objects = objectStatistics( mask, img );
+
+		// print out the objects into the ImageJ log window
+		IJ.log( "Found " + objects.numObjects + " objects" );
+
+		for ( int o = 0; o < objects.numObjects; ++o )
+			IJ.log( "Object " + o + ": " + objects.count[ o ] + " pixels, center of mass = " + Util.printCoordinates( objects.centerOfMass( o ) ) );
+	}
+
+	/**
+	 * Labels all connected objects of the mask (neighbors along the axes) and sums up
+	 * their intensities, intensity-weighted locations and pixel counts in one pass.
+	 *
+	 * The mask is streamed in flat order, only the labels of the current and the
+	 * previous slab along the last dimension are kept (lines in 2d, planes in 3d).
+	 * Labels that turn out to belong to the same object are merged in a union-find
+	 * structure, the statistics are stored in primitive arrays indexed by label and
+	 * merged at the end. Mask and image must have the same dimensions, a slab
+	 * can have at most Integer.MAX_VALUE pixels.
+	 */
+	public <T extends RealType<T>> ObjectStatistics objectStatistics( RandomAccessibleInterval< BitType > mask, RandomAccessibleInterval< T > img )
+	{
+		final int n = mask.numDimensions();
+		final int lastDim = n - 1;
+
+		// the strides of the slab and its size
+		final int[] stride = new int[ n ];
+		long slabSize = 1;
+
+		for ( int d = 0; d < lastDim; ++d )
+		{
+			stride[ d ] = (int)slabSize;
+			slabSize *= mask.dimension( d );
+
+			if ( slabSize > Integer.MAX_VALUE )
+				throw new IllegalArgumentException( "A slab of the mask along the last dimension is too large for an array: " + Util.printInterval( mask ) );
+		}
+
+		final KernelStats.Timer timer = KernelStats.start();
+
+		// the labels of the previous and current slab, 0 is background
+		int[] previous = new int[ (int)slabSize ];
+		int[] current = new int[ (int)slabSize ];
+
+		// the union-find structure and the statistics of all labels,
+		// all arrays grow when new labels are needed
+		final Labels labels = new Labels( n );
+
+		// the current location, relative to the min of the mask
+		final long[] position = new long[ n ];
+		final long[] min = new long[ n ];
+		mask.min( min );
+
+		// iterate mask and image in the same (flat) order
+		final Cursor< BitType > cursor = Views.flatIterable( mask ).cursor();
+		final Cursor< T > cursorImg = Views.flatIterable( img ).cursor();
+
+		int i = 0;
+
+		while ( cursor.hasNext() )
+		{
+			final boolean foreground = cursor.next().get();
+			final double intensity = cursorImg.next().getRealDouble();
+
+			if ( foreground )
+			{
+				// connect to all neighbors that were already visited
+				int label = 0;
+
+				for ( int d = 0; d < lastDim; ++d )
+					if ( position[ d ] > 0 )
+						label = labels.connect( label, current[ i - stride[ d ] ] );
+
+				if ( position[ lastDim ] > 0 )
+					label = labels.connect( label, previous[ i ] );
+
+				// no neighbor is foreground, this is a new object
+				if ( label == 0 )
+					label = labels.add();
+
+				current[ i ] = label;
+				labels.add( label, position, min, intensity );
+			}
+			else
+			{
+				current[ i ] = 0;
+			}
+
+			// move to the next location, roll the slabs when a slab is done
+			if ( ++i == slabSize )
+			{
+				i = 0;
+
+				final int[] tmp = previous;
+				previous = current;
+				current = tmp;
+			}
+
+			for ( int d = 0; d < n; ++d )
+			{
+				if ( ++position[ d ] < mask.dimension( d ) )
+					break;
+
+				position[ d ] = 0;
+			}
+		}
+
+		final ObjectStatistics statistics = labels.statistics();
+
+		KernelStats.stop( "centerOfMass3", img, timer );
+
+		return statistics;
+	}
+
+	/**
+	 * The statistics of all objects, every array is indexed by the number of the object,
+	 * objects are numbered in the order in which they are first encountered
+	 */
+	public static class ObjectStatistics
+	{
+		// the number of objects and dimensions
+		public final int numObjects;
+		public final int numDimensions;
+
+		// the number of pixels of each object
+		public final long[] count;
+
+		// the sum of intensities of each object
+		public final double[] intensity;
+
+		// the sum of the location weighted by the intensity, numDimensions values per object
+		public final double[] weightedLocation;
+
+		public ObjectStatistics( int numObjects, int numDimensions, long[] count, double[] intensity, double[] weightedLocation )
+		{
+			this.numObjects = numObjects;
+			this.numDimensions = numDimensions;
+			this.count = count;
+			this.intensity = intensity;
+			this.weightedLocation = weightedLocation;
+		}
+
+		public double[] centerOfMass( int object )
+		{
+			final double[] center = new double[ numDimensions ];
+
+			for ( int d = 0; d < numDimensions; ++d )
+				center[ d ] = weightedLocation[ object * numDimensions + d ] / intensity[ object ];
+
+			return center;
+		}
+	}
+
+	/**
+	 * Union-find structure of labels together with their statistics,
+	 * all stored in primitive arrays indexed by label
+	 */
+	protected static class Labels
+	{
+		final int n;
+
+		// the number of labels used so far, label 0 is background
+		int size = 1;
+
+		int[] parent = new int[ 1024 ];
+		long[] count = new long[ 1024 ];
+		double[] intensity = new double[ 1024 ];
+		double[] weightedLocation;
+
+		Labels( int n )
+		{
+			this.n = n;
+			this.weightedLocation = new double[ 1024 * n ];
+		}
+
+		int add()
+		{
+			if ( size == parent.length )
+			{
+				final int capacity = parent.length * 2;
+
+				parent = Arrays.copyOf( parent, capacity );
+				count = Arrays.copyOf( count, capacity );
+				intensity = Arrays.copyOf( intensity, capacity );
+				weightedLocation = Arrays.copyOf( weightedLocation, capacity * n );
+			}
+
+			parent[ size ] = size;
+
+			return size++;
+		}
+
+		void add( int label, long[] position, long[] min, double value )
+		{
+			++count[ label ];
+			intensity[ label ] += value;
+
+			for ( int d = 0; d < n; ++d )
+				weightedLocation[ label * n + d ] += ( min[ d ] + position[ d ] ) * value;
+		}
+
+		int find( int label )
+		{
+			// path halving
+			while ( parent[ label ] != label )
+			{
+				parent[ label ] = parent[ parent[ label ] ];
+				label = parent[ label ];
+			}
+
+			return label;
+		}
+
+		/**
+		 * @return the label of the pixel after connecting it to a neighbor with the given label,
+		 * if the neighbor is background the label stays the same
+		 */
+		int connect( int label, int neighbor )
+		{
+			if ( neighbor == 0 )
+				return label;
+
+			if ( label == 0 )
+				return find( neighbor );
+
+			final int a = find( label );
+			final int b = find( neighbor );
+
+			// the smaller label becomes the root, so that objects keep the
+			// number of the label where they were first encountered
+			if ( a < b )
+			{
+				parent[ b ] = a;
+				return a;
+			}
+			else
+			{
+				parent[ a ] = b;
+				return b;
+			}
+		}
+
+		ObjectStatistics statistics()
+		{
+			// number the roots in the order of their labels
+			final int[] object = new int[ size ];
+			int numObjects = 0;
+
+			for ( int label = 1; label < size; ++label )
+				if ( find( label ) == label )
+					object[ label ] = numObjects++;
+
+			// merge the statistics of all labels into their objects
+			final long[] objectCount = new long[ numObjects ];
+			final double[] objectIntensity = new double[ numObjects ];
+			final double[] objectLocation = new double[ numObjects * n ];
+
+			for ( int label = 1; label < size; ++label )
+			{
+				final int o = object[ find( label ) ];
+
+				objectCount[ o ] += count[ label ];
+				objectIntensity[ o ] += intensity[ label ];
+
+				for ( int d = 0; d < n; ++d )
+					objectLocation[ o * n + d ] += weightedLocation[ label * n + d ];
+			}
+
+			return new ObjectStatistics( numObjects, n, objectCount, objectIntensity, objectLocation );
+		}
+	}
+}
@@ -5,8 +5,7 @@ import ij.ImageJ;
 import ij.ImagePlus;
 import ij.WindowManager;
 import ij.plugin.PlugIn;
-import net.imglib2.Cursor;
-import net.imglib2.RandomAccess;
+import net.imglib2.FinalInterval;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
 import net.imglib2.img.display.imagej.ImageJFunctions;
@@ -62,66 +61,23 @@ public class ImgLib2_Gradient1 implements PlugIn
 
 	public <T extends RealType<T>> Img<T> gradient( Img< T > img )
 	{
+		final KernelStats.Timer timer = KernelStats.start();
+
 		// create a new ImgLib2 image of same type & dimensions
 		ImgFactory<T> imgFactory = img.factory();
 		Img<T> gradientImg = imgFactory.create( img, img.firstElement() );
-				
-		// create a localizing cursor on the GradientImg, it will iterate all pixels
-		// and is able to efficiently return its position at each pixel, at each
-		// pixel we will compute the gradient
-		Cursor<T> cursor = gradientImg.localizingCursor();
-
-		// instantiate a RandomAccess in the original image, it will be used to 
-		// compute the gradient locally at each pixel location
-		RandomAccess<T> randomAccess = img.randomAccess();
-
-		// iterate over all pixels
-		while ( cursor.hasNext() )
-		{
-			// move the cursor to the next pixel
-			cursor.fwd();
-			
-			// test if we are able to compute the gradient
-			boolean validPosition = true;
-
-			for ( int d = 0; d < img.numDimensions(); ++d )
-				if ( cursor.getLongPosition( d ) <= 0 || cursor.getLongPosition( d ) >= img.dimension( d ) - 1 )
-					validPosition = false;
-
-			if ( !validPosition )
-				continue;
 
-			// compute gradient in each dimension
-			double gradient = 0;
-			
-			for ( int d = 0; d < img.numDimensions(); ++d )
-			{
-				// set the randomaccess to the location of the cursor
-				randomAccess.setPosition( cursor );
+		// we are only able to compute the gradient for pixels whose neighbors
+		// are all inside the image, i.e. the image without its border pixels
+		FinalInterval interior = GradientStencil.interior( img );
 
-				// move one pixel back in dimension d
-				randomAccess.bck( d );
+		// compute the gradient for all interior pixels, the image is streamed
+		// slab by slab so that every pixel is only read once (there are none
+		// if the image is too small)
+		if ( interior != null )
+			GradientStencil.gradientInterior( img, gradientImg, interior );
 
-				// get the value 
-				double v1 = randomAccess.get().getRealDouble();
-
-				// move twice forward in dimension d, i.e.
-				// one pixel above the location of the cursor
-				randomAccess.fwd( d );
-				randomAccess.fwd( d );
-
-				// get the value
-				double v2 = randomAccess.get().getRealDouble();
-
-				// add the square of the magnitude of the gradient
-				gradient += ((v2 - v1) * (v2 - v1))/4;
-			}
-
-			// the square root of all quadratic sums yields
-			// the magnitude of the gradient at this location,
-			// set the pixel value of the gradient image
-			cursor.get().setReal( Math.sqrt( gradient ) );
-		}
+		KernelStats.stop( "gradient1", img, timer );
 
 		return gradientImg;
 	}
@@ -5,19 +5,15 @@ import ij.ImageJ;
 import ij.ImagePlus;
 import ij.WindowManager;
 import ij.plugin.PlugIn;
-import net.imglib2.Cursor;
-import net.imglib2.RandomAccess;
-import net.imglib2.RandomAccessible;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
-import net.imglib2.view.Views;
 
 /**
  *  Compute the gradient at each pixel location in the image in N dimensions
- *  using OutOfBoundsStrategies
+ *  using OutOfBoundsStrategies only for the pixels at the border of the image
  */
 public class ImgLib2_Gradient2 implements PlugIn
 {
@@ -64,60 +60,19 @@ public class ImgLib2_Gradient2 implements PlugIn
 
 	public <T extends RealType<T>> Img<T> gradient( Img< T > img )
 	{
+		final KernelStats.Timer timer = KernelStats.start();
+
 		// create a new ImgLib2 image of same type & dimensions
 		ImgFactory<T> imgFactory = img.factory();
 		Img<T> gradientImg = imgFactory.create( img, img.firstElement() );
-				
-		// create a localizing cursor on the GradientImg, it will iterate all pixels
-		// and is able to efficiently return its position at each pixel, at each
-		// pixel we will compute the gradient
-		Cursor<T> cursor = gradientImg.localizingCursor();
 
-		// We extend the input image by a mirroring out of bounds strategy so
+		// compute the gradient for all pixels of the image, the interior is
+		// computed directly on the image and only the one-pixel shell uses
+		// a mirroring out of bounds strategy (Views.extendMirrorSingle) so
 		// that we can access pixels outside of the image
-		RandomAccessible<T> view = Views.extendMirrorSingle( img );
-		
-		// instantiate a RandomAccess on the extended view, it will be used to 
-		// compute the gradient locally at each pixel location
-		RandomAccess<T> randomAccess = view.randomAccess();
-
-		// iterate over all pixels
-		while ( cursor.hasNext() )
-		{
-			// move the cursor to the next pixel
-			cursor.fwd();
-			
-			// compute gradient in each dimension
-			double gradient = 0;
-			
-			for ( int d = 0; d < img.numDimensions(); ++d )
-			{
-				// set the randomaccess to the location of the cursor
-				randomAccess.setPosition( cursor );
-
-				// move one pixel back in dimension d
-				randomAccess.bck( d );
+		GradientStencil.gradient( img, gradientImg, img );
 
-				// get the value 
-				double v1 = randomAccess.get().getRealDouble();
-
-				// move twice forward in dimension d, i.e.
-				// one pixel above the location of the cursor
-				randomAccess.fwd( d );
-				randomAccess.fwd( d );
-
-				// get the value
-				double v2 = randomAccess.get().getRealDouble();
-
-				// add the square of the magnitude of the gradient
-				gradient += ((v2 - v1) * (v2 - v1))/4;
-			}
-
-			// the square root of all quadratic sums yields
-			// the magnitude of the gradient at this location,
-			// set the pixel value of the gradient image
-			cursor.get().setReal( Math.sqrt( gradient ) );
-		}
+		KernelStats.stop( "gradient2", img, timer );
 
 		return gradientImg;
 	}
@@ -5,13 +5,22 @@ import ij.ImageJ;
 import ij.ImagePlus;
 import ij.WindowManager;
 import ij.plugin.PlugIn;
-import net.imglib2.Cursor;
-import net.imglib2.RandomAccess;
-import net.imglib2.RandomAccessible;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.img.planar.PlanarImgFactory;
+import net.imglib2.iterator.LocalizingIntervalIterator;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.view.Views;
@@ -19,7 +28,9 @@ import net.imglib2.view.Views;
 /**
  *  Compute the gradient at each pixel location in the image in N dimensions
  *  using OutOfBoundsStrategies. Here we always return the gradient as Float,
- *  no matter what the input type is
+ *  no matter what the input type is. OutOfBoundsStrategies are only used for the
+ *  pixels at the border of the image. The gradient can also be computed
+ *  multi-threaded by splitting the output into blocks along the last dimension.
  */
 public class ImgLib2_Gradient3 implements PlugIn
 {
@@ -57,70 +68,140 @@ public class ImgLib2_Gradient3 implements PlugIn
 
 	public <T extends RealType<T>> void process( Img<T> img )
 	{
-		// compute the gradient on the image
-		Img<FloatType> gradient = gradient( img );
+		try
+		{
+			// compute the gradient on the image using all available cores
+			Img<FloatType> gradient = gradient( img, Runtime.getRuntime().availableProcessors() );
 
-		// show the new Img that contains the gradient
-		ImageJFunctions.show( gradient );
+			// show the new Img that contains the gradient
+			ImageJFunctions.show( gradient );
+		}
+		catch ( InterruptedException e )
+		{
+			// keep the interrupt for the caller, e.g. the thread of the plugin
+			Thread.currentThread().interrupt();
+			IJ.log( "Gradient computation was interrupted: " + e );
+		}
+		catch ( ExecutionException e )
+		{
+			IJ.log( "Gradient computation failed: " + e.getCause() );
+		}
 	}
 
 	public <T extends RealType<T>> Img<FloatType> gradient( Img< T > img )
 	{
+		final KernelStats.Timer timer = KernelStats.start();
+
 		// create a new ImgLib2 image of same dimensions, but FloatType
 		ImgFactory<FloatType> imgFactory = new PlanarImgFactory<FloatType>();
 		Img<FloatType> gradientImg = imgFactory.create( img, new FloatType() );
-				
-		// create a localizing cursor on the GradientImg, it will iterate all pixels
-		// and is able to efficiently return its position at each pixel, at each
-		// pixel we will compute the gradient
-		Cursor<FloatType> cursor = gradientImg.localizingCursor();
 
-		// We extend the input image by a mirroring out of bounds strategy so
+		// compute the gradient for all pixels of the output, the interior is
+		// computed directly on the image and only the one-pixel shell uses
+		// a mirroring out of bounds strategy (Views.extendMirrorSingle) so
 		// that we can access pixels outside of the image
-		RandomAccessible<T> view = Views.extendMirrorSingle( img );
-		
-		// instantiate a RandomAccess on the extended view, it will be used to 
-		// compute the gradient locally at each pixel location
-		RandomAccess<T> randomAccess = view.randomAccess();
+		GradientStencil.gradient( img, gradientImg, img );
+
+		KernelStats.stop( "gradient3", img, timer );
 
-		// iterate over all pixels
-		while ( cursor.hasNext() )
+		return gradientImg;
+	}
+
+	public <T extends RealType<T>> Img<FloatType> gradient( Img< T > img, int numThreads ) throws InterruptedException, ExecutionException
+	{
+		// create a thread pool that is only used for this gradient computation
+		ExecutorService service = Executors.newFixedThreadPool( numThreads );
+
+		try
 		{
-			// move the cursor to the next pixel
-			cursor.fwd();
-			
-			// compute gradient in each dimension
-			double gradient = 0;
-			
-			for ( int d = 0; d < img.numDimensions(); ++d )
-			{
-				// set the randomaccess to the location of the cursor
-				randomAccess.setPosition( cursor );
+			return gradient( img, service, numThreads );
+		}
+		finally
+		{
+			service.shutdown();
+		}
+	}
 
-				// move one pixel back in dimension d
-				randomAccess.bck( d );
+	public <T extends RealType<T>> Img<FloatType> gradient( final Img< T > img, final ExecutorService service, final int numBlocks ) throws InterruptedException, ExecutionException
+	{
+		final KernelStats.Timer timer = KernelStats.start();
+
+		// create a new ImgLib2 image of same dimensions, but FloatType
+		ImgFactory<FloatType> imgFactory = new PlanarImgFactory<FloatType>();
+		final Img<FloatType> gradientImg = imgFactory.create( img, new FloatType() );
+
+		// we split the output into blocks along the last dimension, for a
+		// PlanarImg in 3d every block is a set of complete planes
+		final int n = img.numDimensions();
+		final int lastDim = n - 1;
+		final long size = img.dimension( lastDim );
+		final long blockSize = Math.max( 1, ( size + numBlocks - 1 ) / numBlocks );
 
-				// get the value 
-				double v1 = randomAccess.get().getRealDouble();
+		// one task per block, every task iterates its own part of the output
+		// and uses its own RandomAccesses on the image and the extended view
+		final List< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
 
-				// move twice forward in dimension d, i.e.
-				// one pixel above the location of the cursor
-				randomAccess.fwd( d );
-				randomAccess.fwd( d );
+		for ( long start = 0; start < size; start += blockSize )
+		{
+			final long[] min = new long[ n ];
+			final long[] max = new long[ n ];
 
-				// get the value
-				double v2 = randomAccess.get().getRealDouble();
+			gradientImg.min( min );
+			gradientImg.max( max );
 
-				// add the square of the magnitude of the gradient
-				gradient += ((v2 - v1) * (v2 - v1))/4;
-			}
+			min[ lastDim ] = gradientImg.min( lastDim ) + start;
+			max[ lastDim ] = Math.min( gradientImg.max( lastDim ), min[ lastDim ] + blockSize - 1 );
 
-			// the square root of all quadratic sums yields
-			// the magnitude of the gradient at this location,
-			// set the pixel value of the gradient image
-			cursor.get().set( (float)Math.sqrt( gradient ) );
+			final FinalInterval block = new FinalInterval( min, max );
+
+			tasks.add( new Callable< Void >()
+			{
+				public Void call()
+				{
+					GradientStencil.gradient( img, gradientImg, block );
+					return null;
+				}
+			});
 		}
 
+		// run all blocks and wait until they are finished, a failure
+		// in any of the blocks is passed on as ExecutionException
+		for ( Future< Void > future : service.invokeAll( tasks ) )
+			future.get();
+
+		KernelStats.stop( "gradient3", img, timer );
+
 		return gradientImg;
 	}
+
+	/**
+	 * Computes the gradient into an output that is cached on disk, so that the output
+	 * can be larger than the memory. The output is computed cell by cell, every cell is
+	 * a block of the gradient computation. All changed cells are written to the backing
+	 * file at the end.
+	 */
+	public <T extends RealType<T>> void gradient( Img< T > img, DiskCachedCellImg< FloatType > gradientImg )
+	{
+		final KernelStats.Timer timer = KernelStats.start();
+
+		final long[] cellPosition = new long[ img.numDimensions() ];
+		final LocalizingIntervalIterator cells = new LocalizingIntervalIterator( gradientImg.getCellGrid() );
+
+		while ( cells.hasNext() )
+		{
+			cells.fwd();
+			cells.localize( cellPosition );
+
+			// the cell is an ArrayImg starting at 0, translate it to its location in the image
+			final Interval cell = gradientImg.getCellInterval( cellPosition );
+			final long[] cellMin = new long[ cell.numDimensions() ];
+			cell.min( cellMin );
+
+			GradientStencil.gradient( img, Views.translate( gradientImg.getCell( cellPosition, true ), cellMin ), cell );
+		}
+
+		gradientImg.flush();
+
+		KernelStats.stop( "gradient3Disk", img, timer );
+	}
 }
\ No newline at end of file
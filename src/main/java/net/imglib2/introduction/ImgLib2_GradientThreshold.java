@@ -0,0 +1,111 @@
+package net.imglib2.introduction;
+
+import ij.IJ;
+import ij.ImageJ;
+import ij.ImagePlus;
+import ij.WindowManager;
+import ij.plugin.PlugIn;
+import net.imglib2.converter.Converter;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.img.planar.PlanarImgFactory;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ *  Compute an edge mask by thresholding the magnitude of the gradient in N
+ *  dimensions. Gradient and threshold are computed in one pass, there is no
+ *  intermediate gradient image.
+ */
+public class ImgLib2_GradientThreshold implements PlugIn
+{
+	public static void main( String[] args )
+	{
+		new ImageJ();
+		new ImgLib2_GradientThreshold().run( null );
+	}
+
+	public void run(String arg0)
+	{
+		// get the current ImageJ ImagePlus
+		ImagePlus imp = WindowManager.getCurrentImage();
+
+		// test if an image is open, otherwise load blobs
+		if ( imp == null )
+		{
+			imp = new ImagePlus( getClass().getResource( "/blobs.tif" ).getFile() );
+			imp.show();
+		}
+
+		// wrap it into an ImgLib2 Img (no copying)
+		Img<FloatType> img = ImageJFunctions.wrapFloat( imp );
+
+		// test if it could be wrapped
+		if ( img == null )
+		{
+			IJ.log( "Cannot wrap image" );
+			return;
+		}
+
+		// process wrapped image with ImgLib2
+		process( img );
+	}
+
+	public <T extends RealType<T>> void process( Img<T> img )
+	{
+		// define threshold for the magnitude of the gradient
+		double threshold = 20;
+
+		// compute the edge mask on the image
+		Img< BitType > edges = gradientThreshold( img, threshold );
+
+		// show the new Img that contains the edges
+		ImageJFunctions.show( edges );
+	}
+
+	/**
+	 * Sets every pixel whose gradient magnitude is larger than the threshold to 1.
+	 * The sum of the squared central differences is compared against the squared
+	 * threshold, so no square root is computed. The comparison is done in double
+	 * precision, i.e. pixels whose magnitude lies within float precision of the
+	 * threshold might differ from thresholding a FloatType gradient image.
+	 */
+	public <T extends RealType<T>> Img< BitType > gradientThreshold( Img< T > img, double threshold )
+	{
+		final KernelStats.Timer timer = KernelStats.start();
+
+		// create a new ImgLib2 image of same dimensions
+		// but using BitType, which only requires 1 bit per pixel
+		ImgFactory< BitType > imgFactory = new PlanarImgFactory< BitType >();
+		Img< BitType > thresholdImg = imgFactory.create( img, new BitType() );
+
+		// the magnitude is never negative, so a negative threshold selects all pixels
+		final double squaredThreshold = threshold < 0 ? -1 : threshold * threshold;
+
+		// the converter receives the sum of the squared central differences
+		// at every pixel and sets the 0 or 1 depending on the value
+		Converter< DoubleType, BitType > converter = new GradientStencil.LineConverter< BitType >()
+		{
+			public void convert( DoubleType squared, BitType output )
+			{
+				output.set( squared.get() > squaredThreshold );
+			}
+
+			public void convert( final double[] line, final int length )
+			{
+				for ( int x = 0; x < length; ++x )
+					line[ x ] = line[ x ] > squaredThreshold ? 1 : 0;
+			}
+		};
+
+		// compute gradient and threshold for all pixels of the image
+		GradientStencil.gradient( img, thresholdImg, img, converter );
+
+		KernelStats.stop( "gradientThreshold", img, timer );
+
+		return thresholdImg;
+	}
+}
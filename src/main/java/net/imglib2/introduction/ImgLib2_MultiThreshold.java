@@ -0,0 +1,146 @@
+package net.imglib2.introduction;
+
+import ij.IJ;
+import ij.ImageJ;
+import ij.ImagePlus;
+import ij.WindowManager;
+import ij.plugin.PlugIn;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.img.planar.PlanarImgFactory;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Split an image (all RealTypes) into several intensity classes using a sorted
+ * list of thresholds, display the class of every pixel in a new ImgLib2 Img.
+ * All thresholds are applied in a single pass over the image.
+ */
+public class ImgLib2_MultiThreshold implements PlugIn
+{
+	public static void main( String[] args )
+	{
+		new ImageJ();
+		new ImgLib2_MultiThreshold().run( null );
+	}
+
+	public void run(String arg0)
+	{
+		// get the current ImageJ ImagePlus
+		ImagePlus imp = WindowManager.getCurrentImage();
+
+		// test if an image is open, otherwise load blobs
+		if ( imp == null )
+		{
+			imp = new ImagePlus( getClass().getResource( "/blobs.tif" ).getFile() );
+			imp.show();
+		}
+
+		// wrap it into an ImgLib2 Img (no copying)
+		Img<FloatType> img = ImageJFunctions.wrapFloat( imp );
+
+		// test if it could be wrapped
+		if ( img == null )
+		{
+			IJ.log( "Cannot wrap image" );
+			return;
+		}
+
+		// process wrapped image with ImgLib2
+		process( img );
+	}
+
+	public <T extends RealType<T>> void process( Img<T> img )
+	{
+		// define the thresholds between the classes
+		double[] thresholds = new double[] { 50, 100, 200 };
+
+		// compute the class of every pixel
+		Img< UnsignedByteType > classes = classify( img, thresholds );
+
+		// show the new Img that contains the classes
+		ImageJFunctions.show( classes );
+	}
+
+	/**
+	 * Sets every pixel of the output to the number of thresholds that are smaller than
+	 * the value of the pixel, i.e. class 0 contains all values up to thresholds[ 0 ],
+	 * class k all values larger than thresholds[ k - 1 ] and up to thresholds[ k ].
+	 * Thresholding with a single value gives the same result as ImgLib2_Threshold4.
+	 *
+	 * Integer types of up to 16 bits look up the class of every value in a table,
+	 * all other types search the thresholds by bisection.
+	 *
+	 * @param thresholds - sorted in ascending order, at most 255
+	 */
+	public <T extends RealType<T>> Img< UnsignedByteType > classify( RandomAccessibleInterval< T > image, double[] thresholds )
+	{
+		if ( thresholds.length > 255 )
+			throw new IllegalArgumentException( "At most 255 thresholds are supported, but got " + thresholds.length );
+
+		for ( int i = 1; i < thresholds.length; ++i )
+			if ( thresholds[ i ] < thresholds[ i - 1 ] )
+				throw new IllegalArgumentException( "The thresholds are not sorted" );
+
+		final KernelStats.Timer timer = KernelStats.start();
+
+		// create a new ImgLib2 image of same dimensions, but UnsignedByteType
+		ImgFactory< UnsignedByteType > imgFactory = new PlanarImgFactory< UnsignedByteType >();
+		Img< UnsignedByteType > classImg = imgFactory.create( image, new UnsignedByteType() );
+
+		// iterate both in flat order, which is the iteration order of the PlanarImg
+		final Cursor< T > cursor = Views.flatIterable( image ).cursor();
+		final Cursor< UnsignedByteType > cursorClass = classImg.cursor();
+
+		final T type = Views.iterable( image ).firstElement();
+
+		if ( type instanceof IntegerType && type.getBitsPerPixel() <= 16 )
+		{
+			// the class of every value of the type
+			final int min = (int)type.getMinValue();
+			final int[] lut = new int[ (int)( type.getMaxValue() - type.getMinValue() + 1 ) ];
+
+			for ( int v = 0; v < lut.length; ++v )
+				lut[ v ] = numSmaller( thresholds, v + min );
+
+			while ( cursor.hasNext() )
+				cursorClass.next().set( lut[ (int)cursor.next().getRealDouble() - min ] );
+		}
+		else
+		{
+			while ( cursor.hasNext() )
+				cursorClass.next().set( numSmaller( thresholds, cursor.next().getRealDouble() ) );
+		}
+
+		KernelStats.stop( "multiThreshold", image, timer );
+
+		return classImg;
+	}
+
+	/**
+	 * @return the number of thresholds smaller than the value (found by bisection)
+	 */
+	protected static int numSmaller( final double[] thresholds, final double value )
+	{
+		int low = 0;
+		int high = thresholds.length;
+
+		while ( low < high )
+		{
+			final int mid = ( low + high ) >>> 1;
+
+			if ( thresholds[ mid ] < value )
+				low = mid + 1;
+			else
+				high = mid;
+		}
+
+		return low;
+	}
+}
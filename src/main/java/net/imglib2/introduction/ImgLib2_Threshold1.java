@@ -62,14 +62,23 @@ public class ImgLib2_Threshold1 implements PlugIn
 
 	public void threshold( Img< FloatType > img, float threshold )
 	{
-		// for every pixel do
-		for ( FloatType pixelValue : img )
+		final KernelStats.Timer timer = KernelStats.start();
+
+		// if the Img is backed by float[] arrays (ArrayImg, PlanarImg), threshold
+		// them directly in a tight loop, otherwise pixel by pixel
+		if ( !PrimitiveThreshold.threshold( img, threshold ) )
 		{
-			// set the 0 or 255 depending on the value
-			if ( pixelValue.get() > threshold )
-				pixelValue.set( 255 );
-			else
-				pixelValue.set( 0 );
+			// for every pixel do
+			for ( FloatType pixelValue : img )
+			{
+				// set the 0 or 255 depending on the value
+				if ( pixelValue.get() > threshold )
+					pixelValue.set( 255 );
+				else
+					pixelValue.set( 0 );
+			}
 		}
+
+		KernelStats.stop( "threshold1", img, timer );
 	}
 }
\ No newline at end of file
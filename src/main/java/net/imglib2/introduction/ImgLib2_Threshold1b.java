@@ -63,20 +63,29 @@ public class ImgLib2_Threshold1b implements PlugIn
 
 	public void threshold( Img< FloatType > img, float threshold )
 	{
-		// create a cursor on the Img, it will iterate all pixels
-		Cursor<FloatType> cursor = img.cursor();
+		final KernelStats.Timer timer = KernelStats.start();
 
-		// iterate over all pixels
-		while ( cursor.hasNext() )
+		// if the Img is backed by float[] arrays (ArrayImg, PlanarImg), threshold
+		// them directly in a tight loop, otherwise pixel by pixel
+		if ( !PrimitiveThreshold.threshold( img, threshold ) )
 		{
-			// get the value of the next pixel
-			FloatType pixelValue = cursor.next();
+			// create a cursor on the Img, it will iterate all pixels
+			Cursor<FloatType> cursor = img.cursor();
 
-			// set the 0 or 255 depending on the value
-			if ( pixelValue.get() > threshold )
-				pixelValue.set( 255 );
-			else
-				pixelValue.set( 0 );
+			// iterate over all pixels
+			while ( cursor.hasNext() )
+			{
+				// get the value of the next pixel
+				FloatType pixelValue = cursor.next();
+
+				// set the 0 or 255 depending on the value
+				if ( pixelValue.get() > threshold )
+					pixelValue.set( 255 );
+				else
+					pixelValue.set( 0 );
+			}
 		}
+
+		KernelStats.stop( "threshold1b", img, timer );
 	}
 }
\ No newline at end of file
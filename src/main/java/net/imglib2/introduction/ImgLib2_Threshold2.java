@@ -85,6 +85,8 @@ public class ImgLib2_Threshold2 implements PlugIn
 
     public Img<FloatType> threshold( Img< FloatType > img, float threshold )
 	{
+		final KernelStats.Timer timer = KernelStats.start();
+
 		// create a new ImgLib2 image of same type & dimensions
 		ImgFactory<FloatType> imgFactory = img.factory();
 		Img<FloatType> thresholdImg = imgFactory.create( img, img.firstElement() );
@@ -109,6 +111,8 @@ public class ImgLib2_Threshold2 implements PlugIn
 				thresholdImgValue.set( 0 );	
 		}
 
+		KernelStats.stop( "threshold2", img, timer );
+
 		return thresholdImg;
 	}
 }
\ No newline at end of file
@@ -64,6 +64,8 @@ public class ImgLib2_Threshold3 implements PlugIn
 
     public <T extends RealType<T>> Img<T> threshold( Img< T > img, float threshold )
 	{
+		final KernelStats.Timer timer = KernelStats.start();
+
 		// create a new ImgLib2 image of same type & dimensions
 		ImgFactory<T> imgFactory = img.factory();
 		Img<T> thresholdImg = imgFactory.create( img, img.firstElement() );
@@ -88,6 +90,8 @@ public class ImgLib2_Threshold3 implements PlugIn
 				thresholdImgValue.setReal( 0 );	
 		}
 
+		KernelStats.stop( "threshold3", img, timer );
+
 		return thresholdImg;
 	}
 	
@@ -5,7 +5,9 @@ import ij.ImageJ;
 import ij.ImagePlus;
 import ij.WindowManager;
 import ij.plugin.PlugIn;
-import net.imglib2.Cursor;
+
+import java.util.concurrent.ExecutionException;
+
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
 import net.imglib2.img.display.imagej.ImageJFunctions;
@@ -67,31 +69,49 @@ public class ImgLib2_Threshold4 implements PlugIn
 
 	public <T extends Comparable< T > & Type<T> > Img< BitType > threshold( Img< T > image, T threshold )
 	{
+		final KernelStats.Timer timer = KernelStats.start();
+
 		// create a new ImgLib2 image of same dimensions
 		// but using BitType, which only requires 1 bit per pixel
 		ImgFactory< BitType > imgFactory = new PlanarImgFactory< BitType >();
 		Img< BitType > thresholdImg = imgFactory.create( image, new BitType() );
 
-		// create a cursor on the Img and the destination, it will iterate all pixels
-		Cursor<T> cursor = image.cursor();
-		Cursor<BitType> cursorThresholdImg = thresholdImg.cursor();
-		
-		// iterate over all pixels
-		while ( cursor.hasNext() )
-		{
-			// get the value of the next pixel in the input
-			T pixelValue = cursor.next();
+		// iterate over all pixels and set the 0 or 1 depending on the value,
+		// 64 pixels at a time are written into the backing long[] of the
+		// BitType image
+		BitMasks.threshold( image, thresholdImg, threshold );
 
-			// get the value of the next pixel in the output
-			BitType thresholdImgValue = cursorThresholdImg.next();
-
-			// set the 0 or 1 depending on the value
-			if ( pixelValue.compareTo( threshold ) > 0 )
-				thresholdImgValue.setReal( 1 );
-			else
-				thresholdImgValue.setReal( 0 );			
-		}
+		KernelStats.stop( "threshold4", image, timer );
 
 		return thresholdImg;
 	}
+
+	/**
+	 * Thresholds the image into a {@link RunLengthMask} that only stores the runs of
+	 * foreground pixels, for sparse masks it needs much less memory than the BitType image
+	 */
+	public <T extends Comparable< T > & Type<T> > RunLengthMask thresholdSparse( Img< T > image, T threshold )
+	{
+		final KernelStats.Timer timer = KernelStats.start();
+
+		final RunLengthMask mask = RunLengthMask.threshold( image, threshold );
+
+		KernelStats.stop( "threshold4Sparse", image, timer );
+
+		return mask;
+	}
+
+	/**
+	 * Computes a threshold from the histogram of the image that can be passed to
+	 * {@link #threshold(Img, Comparable)} or any of the other threshold methods
+	 *
+	 * @param method - "otsu", "triangle" or a percentile, e.g. "p99.5"
+	 */
+	public <T extends RealType<T>> T autoThreshold( Img< T > img, String method, int numThreads ) throws InterruptedException, ExecutionException
+	{
+		T threshold = img.firstElement().createVariable();
+		threshold.setReal( Histogram.compute( img, numThreads ).threshold( method ) );
+
+		return threshold;
+	}
 }
\ No newline at end of file
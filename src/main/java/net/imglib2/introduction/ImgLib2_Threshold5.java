@@ -5,6 +5,10 @@ import ij.ImageJ;
 import ij.ImagePlus;
 import ij.WindowManager;
 import ij.plugin.PlugIn;
+
+import java.io.File;
+import java.io.IOException;
+
 import net.imglib2.Cursor;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
@@ -78,31 +82,75 @@ public class ImgLib2_Threshold5 implements PlugIn
 
 	public <T extends Comparable< T > & Type<T> > Img< BitType > threshold( RandomAccessibleInterval< T > image, T threshold )
 	{
+		final KernelStats.Timer timer = KernelStats.start();
+
 		// create a new ImgLib2 image of same dimensions
 		// but using BitType, which only requires 1 bit per pixel
 		ImgFactory< BitType > imgFactory = new PlanarImgFactory< BitType >();
 		Img< BitType > thresholdImg = imgFactory.create( image, new BitType() );
 
-		// create a cursor on the Img and the destination, it will iterate all pixels
-		Cursor<T> cursor = Views.iterable( image ).cursor();
-		Cursor<BitType> cursorThresholdImg = thresholdImg.cursor();
-		
-		// iterate over all pixels
-		while ( cursor.hasNext() )
+		// iterate over all pixels and set the 0 or 1 depending on the value,
+		// 64 pixels at a time are written into the backing long[] of the
+		// BitType image
+		BitMasks.threshold( Views.iterable( image ), thresholdImg, threshold );
+
+		KernelStats.stop( "threshold5", image, timer );
+
+		return thresholdImg;
+	}
+
+	/**
+	 * Thresholds the image into a mask that only stores the runs of foreground pixels,
+	 * for sparse masks it needs much less memory than a BitType image
+	 */
+	public <T extends Comparable< T > & Type<T> > RunLengthMask thresholdSparse( RandomAccessibleInterval< T > image, T threshold )
+	{
+		final KernelStats.Timer timer = KernelStats.start();
+
+		final RunLengthMask mask = RunLengthMask.threshold( image, threshold );
+
+		KernelStats.stop( "threshold5Sparse", image, timer );
+
+		return mask;
+	}
+
+	/**
+	 * Writes the threshold of the image directly into a run-length encoded file, one
+	 * block per plane, without creating the mask in memory (see {@link RunLengthMaskWriter}).
+	 * If the threshold fails, the file is deleted.
+	 */
+	public <T extends Comparable< T > & Type<T> > void threshold( RandomAccessibleInterval< T > image, T threshold, File file ) throws IOException
+	{
+		final KernelStats.Timer timer = KernelStats.start();
+
+		final long[] dimensions = new long[ image.numDimensions() ];
+		image.dimensions( dimensions );
+
+		final long planeSize = dimensions.length > 1 ? dimensions[ 0 ] * dimensions[ 1 ] : dimensions[ 0 ];
+		final RunLengthMaskWriter writer = new RunLengthMaskWriter( file, dimensions, planeSize );
+		boolean complete = false;
+
+		try
 		{
-			// get the value of the next pixel in the input
-			T pixelValue = cursor.next();
+			// the writer expects the pixels in flat order
+			final Cursor< T > cursor = Views.flatIterable( image ).cursor();
 
-			// get the value of the next pixel in the output
-			BitType thresholdImgValue = cursorThresholdImg.next();
+			while ( cursor.hasNext() )
+				writer.add( cursor.next().compareTo( threshold ) > 0 );
 
-			// set the 0 or 1 depending on the value
-			if ( pixelValue.compareTo( threshold ) > 0 )
-				thresholdImgValue.setReal( 1 );
-			else
-				thresholdImgValue.setReal( 0 );			
+			writer.close();
+			complete = true;
+		}
+		finally
+		{
+			// do not leak the file handle or leave an incomplete file behind
+			if ( !complete )
+			{
+				writer.abort();
+				file.delete();
+			}
 		}
 
-		return thresholdImg;
+		KernelStats.stop( "threshold5File", image, timer );
 	}
 }
\ No newline at end of file
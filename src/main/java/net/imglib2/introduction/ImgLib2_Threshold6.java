@@ -5,13 +5,25 @@ import ij.ImageJ;
 import ij.ImagePlus;
 import ij.WindowManager;
 import ij.plugin.PlugIn;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import net.imglib2.Cursor;
+import net.imglib2.Interval;
 import net.imglib2.IterableInterval;
 import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
 import net.imglib2.img.cell.CellImgFactory;
 import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.iterator.LocalizingIntervalIterator;
 import net.imglib2.type.Type;
 import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.RealType;
@@ -20,10 +32,14 @@ import net.imglib2.view.Views;
 
 /**
  * Perform a threshold on part of an image (all RealTypes), using an IterableInterval only
- * display the result in a new ImgLib2 Img.
+ * display the result in a new ImgLib2 Img. If the input is also a RandomAccessibleInterval,
+ * the CellImg is processed cell by cell, optionally multi-threaded.
  */
 public class ImgLib2_Threshold6 implements PlugIn
 {
+	// the size of the cells of the CellImg in every dimension
+	protected final int cellSize = 16;
+
 	public static void main( String[] args )
 	{
 		new ImageJ();
@@ -70,18 +86,33 @@ public class ImgLib2_Threshold6 implements PlugIn
 		T threshold = img.firstElement().copy();
 		threshold.setReal( 100 );
 
-		// apply threshold to image
-		Img< BitType > thresholdImg = threshold( img, threshold );
-		
-		// show the new Img that contains the threshold
-		ImageJFunctions.show( thresholdImg );
+		try
+		{
+			// apply threshold to image using all available cores
+			Img< BitType > thresholdImg = threshold( img, threshold, Runtime.getRuntime().availableProcessors() );
+
+			// show the new Img that contains the threshold
+			ImageJFunctions.show( thresholdImg );
+		}
+		catch ( InterruptedException e )
+		{
+			// keep the interrupt for the caller, e.g. the thread of the plugin
+			Thread.currentThread().interrupt();
+			IJ.log( "Threshold was interrupted: " + e );
+		}
+		catch ( ExecutionException e )
+		{
+			IJ.log( "Threshold failed: " + e.getCause() );
+		}
 	}
 
 	public <T extends Comparable< T > & Type<T> > Img< BitType > threshold( IterableInterval< T > image, T threshold )
 	{
+		final KernelStats.Timer timer = KernelStats.start();
+
 		// create a new ImgLib2 image of same dimensions
 		// but using BitType, which only requires 1 bit per pixel
-		ImgFactory< BitType > imgFactory = new CellImgFactory< BitType >( 16 );
+		ImgFactory< BitType > imgFactory = new CellImgFactory< BitType >( cellSize );
 		Img< BitType > thresholdImg = imgFactory.create( image, new BitType() );
 
 		// test if they have the same iteration order (here we know they don't)
@@ -90,24 +121,22 @@ public class ImgLib2_Threshold6 implements PlugIn
 		
 		if ( sameIterationOrder )
 		{
-			// create a cursor on the Img and the destination, it will iterate all pixels
-			Cursor<T> cursor = image.cursor();
-			Cursor<BitType> cursorThresholdImg = thresholdImg.cursor();
-			
-			// iterate over all pixels
-			while ( cursor.hasNext() )
+			// iterate over all pixels and set the 0 or 1 depending on the value,
+			// (falls back to setting pixel by pixel as the CellImg is not backed
+			// by a single long[])
+			BitMasks.threshold( image, thresholdImg, threshold );
+		}
+		else if ( image instanceof RandomAccessibleInterval )
+		{
+			// walk the CellImg cell by cell, for each cell we iterate the matching
+			// part of the input, so both are accessed sequentially
+			final RandomAccessibleInterval< T > source = randomAccessible( image );
+			final LocalizingIntervalIterator cells = new LocalizingIntervalIterator( cellGrid( thresholdImg ) );
+
+			while ( cells.hasNext() )
 			{
-				// get the value of the next pixel in the input
-				T pixelValue = cursor.next();
-	
-				// get the value of the next pixel in the output
-				BitType thresholdImgValue = cursorThresholdImg.next();
-	
-				// set the 0 or 1 depending on the value
-				if ( pixelValue.compareTo( threshold ) > 0 )
-					thresholdImgValue.setReal( 1 );
-				else
-					thresholdImgValue.setReal( 0 );			
+				cells.fwd();
+				thresholdCell( source, thresholdImg, threshold, cells );
 			}
 		}
 		else
@@ -140,6 +169,248 @@ public class ImgLib2_Threshold6 implements PlugIn
 			}			
 		}
 		
+		KernelStats.stop( "threshold6", image, timer );
+
+		return thresholdImg;
+	}
+
+	public <T extends Comparable< T > & Type<T> > Img< BitType > threshold( IterableInterval< T > image, T threshold, int numThreads ) throws InterruptedException, ExecutionException
+	{
+		// create a thread pool that is only used for this threshold
+		ExecutorService service = Executors.newFixedThreadPool( numThreads );
+
+		try
+		{
+			return threshold( image, threshold, service );
+		}
+		finally
+		{
+			service.shutdown();
+		}
+	}
+
+	/**
+	 * Every cell of the CellImg is an independent unit of work, as each cell has its own
+	 * storage array. To keep the number of tasks small, one task processes all cells
+	 * that share the same position in the last dimension of the cell grid.
+	 */
+	public <T extends Comparable< T > & Type<T> > Img< BitType > threshold( IterableInterval< T > image, final T threshold, ExecutorService service ) throws InterruptedException, ExecutionException
+	{
+		// we can only process parts of the input if it is a RandomAccessibleInterval
+		if ( !( image instanceof RandomAccessibleInterval ) )
+			return threshold( image, threshold );
+
+		final KernelStats.Timer timer = KernelStats.start();
+
+		// create a new ImgLib2 image of same dimensions
+		// but using BitType, which only requires 1 bit per pixel
+		ImgFactory< BitType > imgFactory = new CellImgFactory< BitType >( cellSize );
+		final Img< BitType > thresholdImg = imgFactory.create( image, new BitType() );
+
+		final RandomAccessibleInterval< T > source = randomAccessible( image );
+		final long[] gridSize = cellGrid( thresholdImg );
+		final int lastDim = gridSize.length - 1;
+
+		final List< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
+
+		for ( long z = 0; z < gridSize[ lastDim ]; ++z )
+		{
+			final long[] min = new long[ gridSize.length ];
+			final long[] max = new long[ gridSize.length ];
+
+			for ( int d = 0; d < lastDim; ++d )
+				max[ d ] = gridSize[ d ] - 1;
+
+			min[ lastDim ] = max[ lastDim ] = z;
+
+			tasks.add( new Callable< Void >()
+			{
+				public Void call()
+				{
+					final LocalizingIntervalIterator cells = new LocalizingIntervalIterator( min, max );
+
+					while ( cells.hasNext() )
+					{
+						cells.fwd();
+						thresholdCell( source, thresholdImg, threshold, cells );
+					}
+
+					return null;
+				}
+			});
+		}
+
+		// run all tasks and wait until they are finished, a failure
+		// in any of them is passed on as ExecutionException
+		for ( Future< Void > future : service.invokeAll( tasks ) )
+			future.get();
+
+		KernelStats.stop( "threshold6", image, timer );
+
 		return thresholdImg;
 	}
+
+	public <T extends Comparable< T > & Type<T> > RunLengthMask thresholdSparse( IterableInterval< T > image, T threshold, int numThreads ) throws InterruptedException, ExecutionException
+	{
+		// create a thread pool that is only used for this threshold
+		ExecutorService service = Executors.newFixedThreadPool( numThreads );
+
+		try
+		{
+			return thresholdSparse( image, threshold, service );
+		}
+		finally
+		{
+			service.shutdown();
+		}
+	}
+
+	/**
+	 * Thresholds the image into a {@link RunLengthMask}. The runs of every slab of
+	 * cellSize planes along the last dimension are collected in their own task and
+	 * joined in the order of the slabs, which is the flat order of the lines.
+	 */
+	public <T extends Comparable< T > & Type<T> > RunLengthMask thresholdSparse( IterableInterval< T > image, final T threshold, ExecutorService service ) throws InterruptedException, ExecutionException
+	{
+		// the runs are collected line by line, which needs random access to the lines
+		if ( !( image instanceof RandomAccessibleInterval ) )
+			throw new IllegalArgumentException( "A sparse threshold needs a RandomAccessibleInterval" );
+
+		final KernelStats.Timer timer = KernelStats.start();
+
+		final RandomAccessibleInterval< T > source = randomAccessible( image );
+		final int lastDim = source.numDimensions() - 1;
+
+		final List< Callable< RunLengthMask > > tasks = new ArrayList< Callable< RunLengthMask > >();
+
+		// a one-dimensional image is a single line
+		final long slab = lastDim == 0 ? source.dimension( 0 ) : cellSize;
+
+		for ( long z = source.min( lastDim ); z <= source.max( lastDim ); z += slab )
+		{
+			final long[] min = new long[ source.numDimensions() ];
+			final long[] max = new long[ source.numDimensions() ];
+
+			source.min( min );
+			source.max( max );
+
+			min[ lastDim ] = z;
+			max[ lastDim ] = Math.min( z + slab, source.max( lastDim ) + 1 ) - 1;
+
+			tasks.add( new Callable< RunLengthMask >()
+			{
+				public RunLengthMask call()
+				{
+					return RunLengthMask.threshold( Views.interval( source, min, max ), threshold );
+				}
+			});
+		}
+
+		final List< RunLengthMask > parts = new ArrayList< RunLengthMask >();
+
+		// run all tasks and wait until they are finished, a failure
+		// in any of them is passed on as ExecutionException
+		for ( Future< RunLengthMask > future : service.invokeAll( tasks ) )
+			parts.add( future.get() );
+
+		final RunLengthMask mask = RunLengthMask.concatenate( source, parts );
+
+		KernelStats.stop( "threshold6Sparse", image, timer );
+
+		return mask;
+	}
+
+	/**
+	 * Thresholds the image into a mask that is cached on disk, so that the mask can be
+	 * larger than the memory. The mask is written cell by cell, each cell is an ArrayImg
+	 * so 64 pixels at a time are written into its long[]. All changed cells are written
+	 * to the backing file at the end.
+	 */
+	public <T extends Comparable< T > & Type<T> > void threshold( RandomAccessibleInterval< T > image, T threshold, DiskCachedCellImg< BitType > mask )
+	{
+		final KernelStats.Timer timer = KernelStats.start();
+
+		final int n = image.numDimensions();
+		final long[] cellPosition = new long[ n ];
+		final long[] sourceMin = new long[ n ];
+		final long[] sourceMax = new long[ n ];
+
+		final LocalizingIntervalIterator cells = new LocalizingIntervalIterator( mask.getCellGrid() );
+
+		while ( cells.hasNext() )
+		{
+			cells.fwd();
+			cells.localize( cellPosition );
+
+			// the part of the input that corresponds to the cell
+			final Interval cell = mask.getCellInterval( cellPosition );
+
+			for ( int d = 0; d < n; ++d )
+			{
+				sourceMin[ d ] = cell.min( d ) - mask.min( d ) + image.min( d );
+				sourceMax[ d ] = cell.max( d ) - mask.min( d ) + image.min( d );
+			}
+
+			BitMasks.threshold( Views.flatIterable( Views.interval( image, sourceMin, sourceMax ) ), mask.getCell( cellPosition, true ), threshold );
+		}
+
+		mask.flush();
+
+		KernelStats.stop( "threshold6Disk", image, timer );
+	}
+
+	/**
+	 * Thresholds one cell of the CellImg, the cell is given by its position in the cell grid
+	 */
+	protected <T extends Comparable< T > & Type<T> > void thresholdCell( RandomAccessibleInterval< T > image, Img< BitType > thresholdImg, T threshold, LocalizingIntervalIterator cell )
+	{
+		final int n = thresholdImg.numDimensions();
+
+		// the interval of the cell in the threshold image and in the input
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+		final long[] sourceMin = new long[ n ];
+		final long[] sourceMax = new long[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			min[ d ] = cell.getLongPosition( d ) * cellSize;
+			max[ d ] = Math.min( min[ d ] + cellSize, thresholdImg.dimension( d ) ) - 1;
+			sourceMin[ d ] = min[ d ] + image.min( d );
+			sourceMax[ d ] = max[ d ] + image.min( d );
+		}
+
+		// iterate both parts in the same (flat) order, the RandomAccess of
+		// the threshold image never leaves the cell
+		Cursor<T> cursor = Views.flatIterable( Views.interval( image, sourceMin, sourceMax ) ).cursor();
+		Cursor<BitType> cursorThresholdImg = Views.flatIterable( Views.interval( thresholdImg, min, max ) ).cursor();
+
+		while ( cursor.hasNext() )
+		{
+			// set the 0 or 1 depending on the value
+			if ( cursor.next().compareTo( threshold ) > 0 )
+				cursorThresholdImg.next().setReal( 1 );
+			else
+				cursorThresholdImg.next().setReal( 0 );
+		}
+	}
+
+	/**
+	 * @return the number of cells in every dimension of the CellImg
+	 */
+	protected long[] cellGrid( Img< BitType > thresholdImg )
+	{
+		final long[] gridSize = new long[ thresholdImg.numDimensions() ];
+
+		for ( int d = 0; d < gridSize.length; ++d )
+			gridSize[ d ] = ( thresholdImg.dimension( d ) + cellSize - 1 ) / cellSize;
+
+		return gridSize;
+	}
+
+	@SuppressWarnings( "unchecked" )
+	protected static < T > RandomAccessibleInterval< T > randomAccessible( IterableInterval< T > image )
+	{
+		return ( RandomAccessibleInterval< T > ) image;
+	}
 }
\ No newline at end of file
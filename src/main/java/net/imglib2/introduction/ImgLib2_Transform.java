@@ -5,27 +5,35 @@ import ij.ImageJ;
 import ij.ImagePlus;
 import ij.WindowManager;
 import ij.plugin.PlugIn;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import io.scif.img.ImgIOException;
 import io.scif.img.ImgOpener;
 import mpicbg.models.InvertibleBoundable;
 import mpicbg.models.NoninvertibleModelException;
 import mpicbg.models.RigidModel2D;
-import net.imglib2.Cursor;
-import net.imglib2.RandomAccessible;
-import net.imglib2.RealRandomAccess;
-import net.imglib2.RealRandomAccessible;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
 import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.img.display.imagej.ImageJFunctions;
-import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.view.Views;
 
 /**
  *  Transform an image in N dimensions using Linear interpolation
- *  and OutOfBoundsStrategies
+ *  and OutOfBoundsStrategies, optionally multi-threaded
  */
 public class ImgLib2_Transform implements PlugIn
 {
@@ -84,66 +92,297 @@ public class ImgLib2_Transform implements PlugIn
 
 		try
 		{
-			// compute the gradient on the image
-			Img<T> transformed = transform( img, model );
+			// compute the transformed image using all available cores
+			Img<T> transformed = transform( img, model, Runtime.getRuntime().availableProcessors() );
 	
-			// show the new Img that contains the gradient
+			// show the new Img that contains the transformed image
 			ImageJFunctions.show( transformed );
 		}
 		catch ( NoninvertibleModelException e )
 		{
 			IJ.log( model + " cannot be inverted: " + e );
 		}
+		catch ( InterruptedException e )
+		{
+			// keep the interrupt for the caller, e.g. the thread of the plugin
+			Thread.currentThread().interrupt();
+			IJ.log( "Transformation was interrupted: " + e );
+		}
+		catch ( ExecutionException e )
+		{
+			IJ.log( "Transformation failed: " + e.getCause() );
+		}
 	}
 
 	public <T extends RealType<T>> Img<T> transform( Img< T > img, InvertibleBoundable transform ) throws NoninvertibleModelException
 	{
+		final KernelStats.Timer timer = KernelStats.start();
+
 		// create a new ImgLib2 image of same type & dimensions
 		ImgFactory<T> imgFactory = img.factory();
 		Img<T> transformedImg = imgFactory.create( img, img.firstElement() );
-				
-		// create a localizing cursor on the TransformedImg, it will iterate all pixels
-		// and is able to efficiently return its position at each pixel. At each pixel
-		// we will look up the intensity at the corresponding, transformed location in
-		// the input image
-		Cursor<T> cursor = transformedImg.localizingCursor();
-
-		// We extend the input image by a value out of bounds strategy so
-		// that we can access pixels outside of the image
+
+		// locations outside of the input image are set to 0
 		T background = img.firstElement().copy();
 		background.setReal( 0 );
-		RandomAccessible<T> view = Views.extendValue( img, background );
 
-		// We create a RealRandomAccessible by linear interpolating the view, i.e. we can 
-		// compute a pixel value at any floating point location (e.g. 4.5, 5.1, ...)
-		NLinearInterpolatorFactory< T > factory = new NLinearInterpolatorFactory< T >();
-		RealRandomAccessible< T > interpolant = Views.interpolate( view, factory );
+		// render the transformed image line by line, at each pixel we look up the
+		// intensity at the corresponding, transformed location in the input image
+		// using linear interpolation
+		new LineResampler< T >( img, background, transform ).render( transformedImg );
 
-		// instantiate a RealRandomAccess on the extended, interpolated view
-		RealRandomAccess< T > realRandomAccess = interpolant.realRandomAccess();
+		KernelStats.stop( "transform", img, timer );
 
-		// a temporary array to compute the transformation
-		float[] tmp = new float[ img.numDimensions() ];
-	
-		// iterate over all pixels
-		while ( cursor.hasNext() )
+		return transformedImg;
+	}
+
+	/**
+	 * Transforms 2d 8-bit and 16-bit images in ArrayImgs or single-plane PlanarImgs using
+	 * fixed-point bilinear interpolation with the given subpixel precision (1...15 bits),
+	 * see {@link FixedPointResampler}. The result can differ from {@link #transform(Img, InvertibleBoundable)}
+	 * by one gray value, for all other images and models it falls back to it.
+	 */
+	public <T extends RealType<T>> Img<T> transformFixedPoint( Img< T > img, InvertibleBoundable transform, int subpixelBits ) throws NoninvertibleModelException
+	{
+		if ( !FixedPointResampler.supports( img, transform ) )
+			return transform( img, transform );
+
+		final KernelStats.Timer timer = KernelStats.start();
+
+		// create a new ImgLib2 image of same type & dimensions
+		ImgFactory<T> imgFactory = img.factory();
+		Img<T> transformedImg = imgFactory.create( img, img.firstElement() );
+
+		new FixedPointResampler( subpixelBits ).transform( img, transformedImg, transform );
+
+		KernelStats.stop( "transformFixedPoint", img, timer );
+
+		return transformedImg;
+	}
+
+	public <T extends RealType<T>> Img<T> transform( Img< T > img, InvertibleBoundable transform, int numThreads ) throws NoninvertibleModelException, InterruptedException, ExecutionException
+	{
+		// the output has the same size as the input
+		return transform( img, transform, img, numThreads );
+	}
+
+	public <T extends RealType<T>> Img<T> transform( Img< T > img, InvertibleBoundable transform, Interval interval, int numThreads ) throws NoninvertibleModelException, InterruptedException, ExecutionException
+	{
+		// create a thread pool that is only used for this transformation
+		ExecutorService service = Executors.newFixedThreadPool( numThreads );
+
+		try
+		{
+			return transform( img, transform, interval, service, numThreads );
+		}
+		finally
+		{
+			service.shutdown();
+		}
+	}
+
+	public <T extends RealType<T>> Img<T> transform( Img< T > img, InvertibleBoundable transform, ExecutorService service, int numBlocks ) throws NoninvertibleModelException, InterruptedException, ExecutionException
+	{
+		// the output has the same size as the input
+		return transform( img, transform, img, service, numBlocks );
+	}
+
+	/**
+	 * Renders the part of the transformed image that is within the interval, e.g. the
+	 * bounding box of the transformed image. The pixel at location 0 of the returned Img
+	 * shows the location min of the interval. The lines of the output are split into
+	 * blocks along the last dimension, each block is rendered by its own task with its
+	 * own interpolator.
+	 */
+	public <T extends RealType<T>> Img<T> transform( final Img< T > img, final InvertibleBoundable transform, Interval interval, ExecutorService service, int numBlocks ) throws NoninvertibleModelException, InterruptedException, ExecutionException
+	{
+		final KernelStats.Timer timer = KernelStats.start();
+
+		final int n = img.numDimensions();
+		final long[] offset = new long[ n ];
+		final long[] dimensions = new long[ n ];
+
+		interval.min( offset );
+		interval.dimensions( dimensions );
+
+		// create a new ImgLib2 image of same type and the size of the interval
+		ImgFactory<T> imgFactory = img.factory();
+		final Img<T> transformedImg = imgFactory.create( dimensions, img.firstElement() );
+
+		// a view on the output that uses the coordinates of the transformed image
+		final RandomAccessibleInterval<T> target = Views.translate( transformedImg, offset );
+
+		// locations outside of the input image are set to 0
+		final T background = img.firstElement().copy();
+		background.setReal( 0 );
+
+		final int lastDim = n - 1;
+		final long size = target.dimension( lastDim );
+		final long blockSize = Math.max( 1, ( size + numBlocks - 1 ) / numBlocks );
+
+		final List< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
+
+		for ( long start = 0; start < size; start += blockSize )
+		{
+			final long[] min = new long[ n ];
+			final long[] max = new long[ n ];
+
+			target.min( min );
+			target.max( max );
+
+			min[ lastDim ] = target.min( lastDim ) + start;
+			max[ lastDim ] = Math.min( target.max( lastDim ), min[ lastDim ] + blockSize - 1 );
+
+			tasks.add( new Callable< Void >()
+			{
+				public Void call() throws NoninvertibleModelException
+				{
+					new LineResampler< T >( img, background, transform ).render( Views.interval( target, min, max ) );
+					return null;
+				}
+			});
+		}
+
+		// run all blocks and wait until they are finished
+		for ( Future< Void > future : service.invokeAll( tasks ) )
 		{
-			// move the cursor to the next pixel
-			cursor.fwd();
+			try
+			{
+				future.get();
+			}
+			catch ( ExecutionException e )
+			{
+				// pass on if the model could not be inverted
+				if ( e.getCause() instanceof NoninvertibleModelException )
+					throw ( NoninvertibleModelException ) e.getCause();
+
+				throw e;
+			}
+		}
 
-			// get the location of the cursor
-			cursor.localize( tmp );
+		KernelStats.stop( "transform", transformedImg, timer );
 
-			// apply the transformation
-			transform.applyInverseInPlace( tmp );
-			
-			// set the interpolator to the transformed location
-			realRandomAccess.setPosition( tmp );
-			
-			// set the value to the cursor
-			cursor.get().set( realRandomAccess.get() );
+		return transformedImg;
+	}
+
+	public <T extends RealType<T>> Img<T> transformSlices( Img< T > stack, List< ? extends InvertibleBoundable > models, int numThreads ) throws NoninvertibleModelException, InterruptedException, ExecutionException
+	{
+		// create a thread pool that is only used for this transformation
+		ExecutorService service = Executors.newFixedThreadPool( numThreads );
+
+		try
+		{
+			return transformSlices( stack, models, service );
 		}
+		finally
+		{
+			service.shutdown();
+		}
+	}
+
+	/**
+	 * Transforms every slice along the last dimension of the stack with its own model,
+	 * e.g. to correct the drift of a time series of 2d images. All slices are rendered
+	 * into one output of the same size as the stack, one task per slice.
+	 */
+	public <T extends RealType<T>> Img<T> transformSlices( final Img< T > stack, final List< ? extends InvertibleBoundable > models, ExecutorService service ) throws NoninvertibleModelException, InterruptedException, ExecutionException
+	{
+		final int lastDim = stack.numDimensions() - 1;
+
+		if ( models.size() != stack.dimension( lastDim ) )
+			throw new IllegalArgumentException( "Need one model per slice, but got " + models.size() + " models for " + stack.dimension( lastDim ) + " slices." );
+
+		final KernelStats.Timer timer = KernelStats.start();
+
+		// create a new ImgLib2 image of same type & dimensions
+		ImgFactory<T> imgFactory = stack.factory();
+		final Img<T> transformedImg = imgFactory.create( stack, stack.firstElement() );
+
+		// locations outside of the input image are set to 0
+		final T background = stack.firstElement().copy();
+		background.setReal( 0 );
+
+		final List< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
+
+		for ( long z = stack.min( lastDim ); z <= stack.max( lastDim ); ++z )
+		{
+			final long slice = z;
+			final InvertibleBoundable model = models.get( (int)( z - stack.min( lastDim ) ) );
+
+			tasks.add( new Callable< Void >()
+			{
+				public Void call() throws NoninvertibleModelException
+				{
+					// the source and target slice, the interpolator is bound to the source slice
+					final RandomAccessibleInterval< T > source = Views.hyperSlice( stack, lastDim, slice );
+					final RandomAccessibleInterval< T > target = Views.hyperSlice( transformedImg, lastDim, slice );
+
+					new LineResampler< T >( source, background, model ).render( target );
+					return null;
+				}
+			});
+		}
+
+		// run all slices and wait until they are finished
+		for ( Future< Void > future : service.invokeAll( tasks ) )
+		{
+			try
+			{
+				future.get();
+			}
+			catch ( ExecutionException e )
+			{
+				// pass on if a model could not be inverted
+				if ( e.getCause() instanceof NoninvertibleModelException )
+					throw ( NoninvertibleModelException ) e.getCause();
+
+				throw e;
+			}
+		}
+
+		KernelStats.stop( "transformSlices", transformedImg, timer );
 
 		return transformedImg;
 	}
+
+	/**
+	 * Creates a view of the transformed image that is only resampled where it is accessed,
+	 * tile by tile. At most maxTiles tiles are kept in memory, the least recently used
+	 * tile is evicted first.
+	 */
+	public <T extends RealType<T> & NativeType<T>> RandomAccessibleInterval<T> transformLazy( RandomAccessibleInterval< T > img, InvertibleBoundable transform, int tileSize, int maxTiles )
+	{
+		// the view has the same size as the input
+		return new CachedTransformView< T >( img, transform, img, tileSize, maxTiles );
+	}
+
+	/**
+	 * @return the bounding box of the transformed image in pixel coordinates (rounded outwards)
+	 */
+	public FinalInterval boundingBox( Interval img, InvertibleBoundable transform )
+	{
+		final int n = img.numDimensions();
+		final float[] min = new float[ n ];
+		final float[] max = new float[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			min[ d ] = img.min( d );
+			max[ d ] = img.max( d );
+		}
+
+		// transform the bounding box of the input
+		transform.estimateBounds( min, max );
+
+		final long[] boxMin = new long[ n ];
+		final long[] boxMax = new long[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			boxMin[ d ] = (long)Math.floor( min[ d ] );
+			boxMax[ d ] = (long)Math.ceil( max[ d ] );
+		}
+
+		return new FinalInterval( boxMin, boxMax );
+	}
 }
\ No newline at end of file
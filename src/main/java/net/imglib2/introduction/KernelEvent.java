@@ -0,0 +1,40 @@
+package net.imglib2.introduction;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A Java Flight Recorder event for every kernel invocation, so that the kernels
+ * show up next to GC pauses, JIT compilations and allocation samples in JDK Mission
+ * Control. It is begun in {@link KernelStats#start()} and committed in
+ * {@link KernelStats#stop(String, String, long, KernelStats.Timer)}, its duration
+ * is the time of the kernel. Recorded when a recording enables it, e.g.
+ *
+ *   -XX:StartFlightRecording:filename=kernels.jfr,settings=profile
+ *
+ * with net.imglib2.introduction.Kernel enabled in the settings.
+ */
+@Name( "net.imglib2.introduction.Kernel" )
+@Label( "Kernel" )
+@Category( { "ImgLib2", "Kernels" } )
+@Description( "An invocation of a threshold, gradient, center of mass or transform kernel" )
+public class KernelEvent extends Event
+{
+	@Label( "Kernel" )
+	String kernel;
+
+	@Label( "Container" )
+	String container;
+
+	@Label( "Pixels" )
+	long pixels;
+
+	@Label( "Allocated" )
+	@Description( "Bytes allocated by the calling thread" )
+	@DataAmount
+	long allocatedBytes;
+}
@@ -0,0 +1,242 @@
+package net.imglib2.introduction;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import jdk.jfr.EventType;
+
+import net.imglib2.Interval;
+
+/**
+ * Counts the invocations, pixels, time and allocated bytes of the kernels and
+ * exposes them as JMX MBeans (net.imglib2.introduction:type=KernelStats,name=kernel),
+ * e.g. to watch them with jconsole or VisualVM while a batch job runs.
+ *
+ * Disabled unless the JVM is started with -Dnet.imglib2.introduction.stats=true,
+ * the check is a static final field, so the JIT removes it from the kernels. Usage:
+ *
+ *   final KernelStats.Timer timer = KernelStats.start();
+ *   ...
+ *   KernelStats.stop( "gradient", img, timer );
+ *
+ * The allocated bytes are those of the calling thread (if the JVM supports it),
+ * allocations in worker threads of multi-threaded kernels are not included.
+ *
+ * Independent of the property, every invocation is also a {@link KernelEvent} for
+ * the Java Flight Recorder. When neither the statistics nor a recording of the
+ * event are enabled, start() only reads the property and the enabled state of the
+ * event type and returns null without allocating anything.
+ */
+public class KernelStats implements KernelStatsMBean
+{
+	public static final boolean ENABLED = Boolean.getBoolean( "net.imglib2.introduction.stats" );
+
+	// tells whether a running recording enables the KernelEvent, without creating an event
+	final static EventType EVENT_TYPE = EventType.getEventType( KernelEvent.class );
+
+	// the time and allocated bytes when a kernel was started and its flight recorder event
+	public static class Timer
+	{
+		final long nanos;
+		final long allocatedBytes;
+		final KernelEvent event;
+
+		Timer( long nanos, long allocatedBytes, KernelEvent event )
+		{
+			this.nanos = nanos;
+			this.allocatedBytes = allocatedBytes;
+			this.event = event;
+		}
+	}
+
+	// the statistics of all kernels that were used so far
+	final static ConcurrentHashMap< String, KernelStats > kernels = new ConcurrentHashMap< String, KernelStats >();
+
+	final String name;
+	final AtomicLong invocations = new AtomicLong();
+	final AtomicLong pixels = new AtomicLong();
+	final AtomicLong nanos = new AtomicLong();
+	final AtomicLong allocatedBytes = new AtomicLong();
+	volatile String lastContainer = "";
+	volatile double lastPixelsPerSecond = 0;
+
+	protected KernelStats( String name )
+	{
+		this.name = name;
+	}
+
+	/**
+	 * @return the start of a kernel invocation, null if the statistics and the event are disabled
+	 */
+	public static Timer start()
+	{
+		if ( !ENABLED && !EVENT_TYPE.isEnabled() )
+			return null;
+
+		final KernelEvent event = new KernelEvent();
+		event.begin();
+
+		return new Timer( System.nanoTime(), allocatedBytes(), event );
+	}
+
+	/**
+	 * Records a kernel invocation that processed all pixels of the interval
+	 */
+	public static void stop( String kernel, Interval img, Timer timer )
+	{
+		if ( timer == null )
+			return;
+
+		long numPixels = 1;
+
+		for ( int d = 0; d < img.numDimensions(); ++d )
+			numPixels *= img.dimension( d );
+
+		stop( kernel, img.getClass().getSimpleName(), numPixels, timer );
+	}
+
+	public static void stop( String kernel, String container, long numPixels, Timer timer )
+	{
+		if ( timer == null )
+			return;
+
+		final long time = System.nanoTime() - timer.nanos;
+		final long allocated = allocatedBytes() - timer.allocatedBytes;
+
+		final KernelEvent event = timer.event;
+
+		if ( event.isEnabled() )
+		{
+			event.end();
+
+			if ( event.shouldCommit() )
+			{
+				event.kernel = kernel;
+				event.container = container;
+				event.pixels = numPixels;
+				event.allocatedBytes = Math.max( 0, allocated );
+				event.commit();
+			}
+		}
+
+		if ( !ENABLED )
+			return;
+
+		final KernelStats stats = get( kernel );
+
+		stats.invocations.incrementAndGet();
+		stats.pixels.addAndGet( numPixels );
+		stats.nanos.addAndGet( time );
+		stats.allocatedBytes.addAndGet( Math.max( 0, allocated ) );
+		stats.lastContainer = container;
+		stats.lastPixelsPerSecond = time > 0 ? numPixels / ( time / 1e9 ) : 0;
+	}
+
+	/**
+	 * @return the statistics of the kernel, registered as MBean when it is used for the first time
+	 */
+	public static KernelStats get( String kernel )
+	{
+		KernelStats stats = kernels.get( kernel );
+
+		if ( stats == null )
+		{
+			final KernelStats newStats = new KernelStats( kernel );
+			stats = kernels.putIfAbsent( kernel, newStats );
+
+			if ( stats == null )
+			{
+				stats = newStats;
+				register( stats );
+			}
+		}
+
+		return stats;
+	}
+
+	protected static void register( KernelStats stats )
+	{
+		try
+		{
+			final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			server.registerMBean( stats, new ObjectName( "net.imglib2.introduction:type=KernelStats,name=" + ObjectName.quote( stats.name ) ) );
+		}
+		catch ( Exception e )
+		{
+			// the statistics are still collected, they are just not visible via JMX
+			System.err.println( "Cannot register the statistics of " + stats.name + " as MBean: " + e );
+		}
+	}
+
+	/**
+	 * @return the bytes allocated by the current thread so far, 0 if the JVM cannot tell
+	 */
+	protected static long allocatedBytes()
+	{
+		final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+		if ( bean instanceof com.sun.management.ThreadMXBean )
+			return ( ( com.sun.management.ThreadMXBean ) bean ).getThreadAllocatedBytes( Thread.currentThread().getId() );
+
+		return 0;
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	public long getInvocations()
+	{
+		return invocations.get();
+	}
+
+	public long getPixels()
+	{
+		return pixels.get();
+	}
+
+	public long getNanos()
+	{
+		return nanos.get();
+	}
+
+	public long getAllocatedBytes()
+	{
+		return allocatedBytes.get();
+	}
+
+	public String getLastContainer()
+	{
+		return lastContainer;
+	}
+
+	public double getLastPixelsPerSecond()
+	{
+		return lastPixelsPerSecond;
+	}
+
+	public double getPixelsPerSecond()
+	{
+		final long time = nanos.get();
+		return time > 0 ? pixels.get() / ( time / 1e9 ) : 0;
+	}
+
+	public void reset()
+	{
+		invocations.set( 0 );
+		pixels.set( 0 );
+		nanos.set( 0 );
+		allocatedBytes.set( 0 );
+	}
+
+	public String toString()
+	{
+		return name + ": " + getInvocations() + " invocations, " + getPixels() + " px, " + ( getNanos() / 1000000 ) + " ms, " + String.format( "%.1f", getPixelsPerSecond() / 1e6 ) + " Mpx/s, " + getAllocatedBytes() + " bytes allocated, last on " + getLastContainer();
+	}
+}
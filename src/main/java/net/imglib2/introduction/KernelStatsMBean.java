@@ -0,0 +1,25 @@
+package net.imglib2.introduction;
+
+/**
+ * The JMX interface of {@link KernelStats}
+ */
+public interface KernelStatsMBean
+{
+	public String getName();
+
+	public long getInvocations();
+
+	public long getPixels();
+
+	public long getNanos();
+
+	public long getAllocatedBytes();
+
+	public double getPixelsPerSecond();
+
+	public double getLastPixelsPerSecond();
+
+	public String getLastContainer();
+
+	public void reset();
+}
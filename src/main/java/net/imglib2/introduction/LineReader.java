@@ -0,0 +1,248 @@
+package net.imglib2.introduction;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Reads lines of pixels along dimension 0 into a double[] buffer, so that the
+ * kernels run their inner loops on primitive doubles instead of calling
+ * getRealDouble() on the RealType of the image.
+ *
+ * When a kernel is used with FloatType, UnsignedByteType and UnsignedShortType
+ * images, the call of getRealDouble() inside its loop sees several types and the
+ * JIT cannot inline it anymore (a megamorphic call site). {@link #create} therefore
+ * picks a final class for every combination of type and container (ArrayImg or
+ * PlanarImg backed by float[], byte[] or short[]) that copies the line directly
+ * from the backing array, each of them has its own monomorphic loop. All other
+ * images are read through a RandomAccess.
+ *
+ * A LineReader is not thread-safe, every thread needs its own.
+ */
+public abstract class LineReader
+{
+	/**
+	 * Copies length pixels starting at position (in dimension 0) into the buffer
+	 * starting at offset, the position is not changed
+	 */
+	public abstract void read( long[] position, double[] buffer, int offset, int length );
+
+	/**
+	 * @return a reader specialized for the type and the container of the image,
+	 * a reader that uses a RandomAccess if there is none
+	 */
+	public static < T extends RealType< T > > LineReader create( RandomAccessibleInterval< T > img )
+	{
+		final LineReader reader = specialized( img );
+
+		if ( reader != null )
+			return reader;
+
+		return new RealTypeLines< T >( img );
+	}
+
+	/**
+	 * @return a reader specialized for the type and the container of the image, null if there is none
+	 */
+	public static LineReader specialized( RandomAccessibleInterval< ? > img )
+	{
+		final Object type = Views.iterable( img ).firstElement();
+
+		if ( img instanceof ArrayImg )
+		{
+			final Object data = ( ( ArrayImg< ?, ? > ) img ).update( null );
+
+			if ( type instanceof FloatType && data instanceof FloatArray )
+				return new FloatLines( img, new float[][] { ( ( FloatArray ) data ).getCurrentStorageArray() }, img.numDimensions() );
+			else if ( type instanceof UnsignedByteType && data instanceof ByteArray )
+				return new UnsignedByteLines( img, new byte[][] { ( ( ByteArray ) data ).getCurrentStorageArray() }, img.numDimensions() );
+			else if ( type instanceof UnsignedShortType && data instanceof ShortArray )
+				return new UnsignedShortLines( img, new short[][] { ( ( ShortArray ) data ).getCurrentStorageArray() }, img.numDimensions() );
+		}
+		else if ( img instanceof PlanarImg )
+		{
+			final PlanarImg< ?, ? > planarImg = ( PlanarImg< ?, ? > ) img;
+			final int numSlices = planarImg.numSlices();
+			final int planeDims = Math.min( 2, img.numDimensions() );
+
+			// all planes have to be backed by the same kind of array
+			if ( type instanceof FloatType && allPlanes( planarImg, FloatArray.class ) )
+			{
+				final float[][] planes = new float[ numSlices ][];
+
+				for ( int p = 0; p < numSlices; ++p )
+					planes[ p ] = ( ( FloatArray ) planarImg.getPlane( p ) ).getCurrentStorageArray();
+
+				return new FloatLines( img, planes, planeDims );
+			}
+			else if ( type instanceof UnsignedByteType && allPlanes( planarImg, ByteArray.class ) )
+			{
+				final byte[][] planes = new byte[ numSlices ][];
+
+				for ( int p = 0; p < numSlices; ++p )
+					planes[ p ] = ( ( ByteArray ) planarImg.getPlane( p ) ).getCurrentStorageArray();
+
+				return new UnsignedByteLines( img, planes, planeDims );
+			}
+			else if ( type instanceof UnsignedShortType && allPlanes( planarImg, ShortArray.class ) )
+			{
+				final short[][] planes = new short[ numSlices ][];
+
+				for ( int p = 0; p < numSlices; ++p )
+					planes[ p ] = ( ( ShortArray ) planarImg.getPlane( p ) ).getCurrentStorageArray();
+
+				return new UnsignedShortLines( img, planes, planeDims );
+			}
+		}
+
+		return null;
+	}
+
+	protected static boolean allPlanes( PlanarImg< ?, ? > planarImg, Class< ? > arrayClass )
+	{
+		for ( int p = 0; p < planarImg.numSlices(); ++p )
+			if ( !arrayClass.isInstance( planarImg.getPlane( p ) ) )
+				return false;
+
+		return true;
+	}
+
+	/**
+	 * Finds the plane and the index within the plane of a position. An ArrayImg is
+	 * a single plane that spans all dimensions, the planes of a PlanarImg span the
+	 * first two dimensions.
+	 */
+	protected static abstract class PrimitiveLines extends LineReader
+	{
+		final int n;
+		final int planeDims;
+
+		// the steps within a plane and from plane to plane
+		final long[] steps;
+
+		public PrimitiveLines( RandomAccessibleInterval< ? > img, int planeDims )
+		{
+			this.n = img.numDimensions();
+			this.planeDims = planeDims;
+			this.steps = new long[ n ];
+
+			long step = 1;
+
+			for ( int d = 0; d < n; ++d )
+			{
+				// the plane index starts again at 1 in the first dimension beyond the plane
+				if ( d == planeDims )
+					step = 1;
+
+				steps[ d ] = step;
+				step *= img.dimension( d );
+			}
+		}
+
+		public void read( final long[] position, final double[] buffer, final int offset, final int length )
+		{
+			long index = 0;
+			long plane = 0;
+
+			for ( int d = 0; d < planeDims; ++d )
+				index += position[ d ] * steps[ d ];
+
+			for ( int d = planeDims; d < n; ++d )
+				plane += position[ d ] * steps[ d ];
+
+			read( (int)plane, (int)index, buffer, offset, length );
+		}
+
+		protected abstract void read( int plane, int index, double[] buffer, int offset, int length );
+	}
+
+	public static final class FloatLines extends PrimitiveLines
+	{
+		final float[][] planes;
+
+		public FloatLines( RandomAccessibleInterval< ? > img, float[][] planes, int planeDims )
+		{
+			super( img, planeDims );
+			this.planes = planes;
+		}
+
+		protected void read( final int plane, final int index, final double[] buffer, final int offset, final int length )
+		{
+			final float[] values = planes[ plane ];
+
+			for ( int i = 0; i < length; ++i )
+				buffer[ offset + i ] = values[ index + i ];
+		}
+	}
+
+	public static final class UnsignedByteLines extends PrimitiveLines
+	{
+		final byte[][] planes;
+
+		public UnsignedByteLines( RandomAccessibleInterval< ? > img, byte[][] planes, int planeDims )
+		{
+			super( img, planeDims );
+			this.planes = planes;
+		}
+
+		protected void read( final int plane, final int index, final double[] buffer, final int offset, final int length )
+		{
+			final byte[] values = planes[ plane ];
+
+			for ( int i = 0; i < length; ++i )
+				buffer[ offset + i ] = values[ index + i ] & 0xff;
+		}
+	}
+
+	public static final class UnsignedShortLines extends PrimitiveLines
+	{
+		final short[][] planes;
+
+		public UnsignedShortLines( RandomAccessibleInterval< ? > img, short[][] planes, int planeDims )
+		{
+			super( img, planeDims );
+			this.planes = planes;
+		}
+
+		protected void read( final int plane, final int index, final double[] buffer, final int offset, final int length )
+		{
+			final short[] values = planes[ plane ];
+
+			for ( int i = 0; i < length; ++i )
+				buffer[ offset + i ] = values[ index + i ] & 0xffff;
+		}
+	}
+
+	/**
+	 * Any other image, read pixel by pixel using a RandomAccess
+	 */
+	public static final class RealTypeLines< T extends RealType< T > > extends LineReader
+	{
+		final RandomAccess< T > randomAccess;
+
+		public RealTypeLines( RandomAccessibleInterval< T > img )
+		{
+			this.randomAccess = img.randomAccess();
+		}
+
+		public void read( final long[] position, final double[] buffer, final int offset, final int length )
+		{
+			randomAccess.setPosition( position );
+
+			for ( int i = 0; i < length; ++i )
+			{
+				buffer[ offset + i ] = randomAccess.get().getRealDouble();
+				randomAccess.fwd( 0 );
+			}
+		}
+	}
+}
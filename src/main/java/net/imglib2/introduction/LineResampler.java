@@ -0,0 +1,233 @@
+package net.imglib2.introduction;
+
+import mpicbg.models.AbstractAffineModel2D;
+import mpicbg.models.AbstractAffineModel3D;
+import mpicbg.models.InvertibleBoundable;
+import mpicbg.models.NoninvertibleModelException;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.iterator.LocalizingIntervalIterator;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Renders a transformed image line by line using linear interpolation, locations
+ * outside of the source are filled with a background value.
+ *
+ * For affine models the source location changes by a constant vector with every
+ * step along dimension 0, so the inverse transformation is only applied to the first
+ * and the last pixel of a line and the location of every pixel is computed from these
+ * two. The models compute in float, so the step is the difference of the two divided
+ * by the length of the line in double, which keeps the error of every location within
+ * the rounding error of a single inverse transformation. From the same two locations
+ * we compute the span of the line that maps inside the source, only this span is
+ * interpolated, the rest of the line is set to the background. All other models are
+ * inverted at every pixel.
+ *
+ * A LineResampler is not thread-safe, every thread needs its own instance. The
+ * transformation must not be changed while rendering.
+ */
+public class LineResampler< T extends RealType< T > >
+{
+	final int n;
+	final InvertibleBoundable transform;
+
+	// true if the locations along a line are computed incrementally
+	final boolean affine;
+
+	// the bounds of the source and the value outside of it
+	final long[] sourceMin;
+	final long[] sourceMax;
+	final T background;
+
+	// the interpolated source
+	final RealRandomAccess< T > realRandomAccess;
+
+	// temporary arrays for the transformation
+	final float[] tmp;
+	final double[] start;
+	final double[] delta;
+
+	public LineResampler( RandomAccessibleInterval< T > source, T background, InvertibleBoundable transform )
+	{
+		this( source, background, transform, true );
+	}
+
+	/**
+	 * @param incremental - false inverts the transformation at every pixel also for
+	 * affine models, e.g. as reference for the incremental rendering
+	 */
+	public LineResampler( RandomAccessibleInterval< T > source, T background, InvertibleBoundable transform, boolean incremental )
+	{
+		this.n = source.numDimensions();
+		this.transform = transform;
+		this.affine = incremental && isAffine( transform );
+		this.sourceMin = new long[ n ];
+		this.sourceMax = new long[ n ];
+		this.background = background.copy();
+
+		source.min( sourceMin );
+		source.max( sourceMax );
+
+		// We extend the input image by a value out of bounds strategy and create a
+		// RealRandomAccessible by linear interpolating the view, i.e. we can
+		// compute a pixel value at any floating point location (e.g. 4.5, 5.1, ...)
+		this.realRandomAccess = Views.interpolate( Views.extendValue( source, background ), new NLinearInterpolatorFactory< T >() ).realRandomAccess();
+
+		this.tmp = new float[ n ];
+		this.start = new double[ n ];
+		this.delta = new double[ n ];
+	}
+
+	/**
+	 * @return true if the transformation maps lines to lines with a constant step
+	 */
+	public static boolean isAffine( InvertibleBoundable transform )
+	{
+		return transform instanceof AbstractAffineModel2D || transform instanceof AbstractAffineModel3D;
+	}
+
+	/**
+	 * Sets every pixel of the target to the value of the source at the inverse
+	 * transformed location of the pixel. To render a region of the transformed
+	 * image that does not start at 0, use Views.translate() on the target.
+	 */
+	public void render( RandomAccessibleInterval< T > target ) throws NoninvertibleModelException
+	{
+		// iterate the first pixel of every line of the target
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+
+		target.min( min );
+		target.max( max );
+		max[ 0 ] = min[ 0 ];
+
+		final LocalizingIntervalIterator lines = new LocalizingIntervalIterator( min, max );
+		final RandomAccess< T > randomAccess = target.randomAccess();
+		final long sizeX = target.dimension( 0 );
+
+		while ( lines.hasNext() )
+		{
+			lines.fwd();
+			randomAccess.setPosition( lines );
+
+			if ( affine )
+				renderAffineLine( lines, randomAccess, sizeX );
+			else
+				renderLine( randomAccess, sizeX );
+		}
+	}
+
+	/**
+	 * Transforms the first and the last pixel of the line, the locations of all
+	 * other pixels are interpolated from those two
+	 */
+	protected void renderAffineLine( LocalizingIntervalIterator line, RandomAccess< T > randomAccess, long sizeX ) throws NoninvertibleModelException
+	{
+		line.localize( tmp );
+		transform.applyInverseInPlace( tmp );
+
+		for ( int d = 0; d < n; ++d )
+			start[ d ] = tmp[ d ];
+
+		// the step of a line with a single pixel is only used for its span
+		final long last = Math.max( 1, sizeX - 1 );
+
+		line.localize( tmp );
+		tmp[ 0 ] += last;
+		transform.applyInverseInPlace( tmp );
+
+		// the rounding errors of both locations are divided by the length of the
+		// line, the difference of two neighbors would be multiplied by it instead
+		for ( int d = 0; d < n; ++d )
+			delta[ d ] = ( tmp[ d ] - start[ d ] ) / last;
+
+		// the linear interpolation only touches the source if the location is
+		// within (min - 1, max + 1) in every dimension, we intersect the spans
+		// of x that fulfill this for all dimensions (rounded outwards)
+		double spanMin = 0;
+		double spanMax = sizeX - 1;
+
+		for ( int d = 0; d < n; ++d )
+		{
+			final double lower = sourceMin[ d ] - 1;
+			final double upper = sourceMax[ d ] + 1;
+
+			if ( delta[ d ] == 0 )
+			{
+				// constant along the line, either all or nothing is inside
+				if ( start[ d ] <= lower || start[ d ] >= upper )
+					spanMax = -1;
+			}
+			else
+			{
+				final double a = ( lower - start[ d ] ) / delta[ d ];
+				final double b = ( upper - start[ d ] ) / delta[ d ];
+
+				spanMin = Math.max( spanMin, Math.floor( Math.min( a, b ) ) );
+				spanMax = Math.min( spanMax, Math.ceil( Math.max( a, b ) ) );
+			}
+		}
+
+		// the line does not touch the source at all
+		if ( spanMin > spanMax )
+		{
+			fill( randomAccess, sizeX );
+			return;
+		}
+
+		final long x0 = (long)spanMin;
+		final long x1 = (long)spanMax;
+
+		// the part of the line before the source
+		fill( randomAccess, x0 );
+
+		for ( long x = x0; x <= x1; ++x )
+		{
+			// set the interpolator to the transformed location
+			for ( int d = 0; d < n; ++d )
+				realRandomAccess.setPosition( start[ d ] + x * delta[ d ], d );
+
+			// set the value to the target
+			randomAccess.get().set( realRandomAccess.get() );
+			randomAccess.fwd( 0 );
+		}
+
+		// the part of the line after the source
+		fill( randomAccess, sizeX - 1 - x1 );
+	}
+
+	/**
+	 * Sets the next numPixels pixels along dimension 0 to the background
+	 */
+	protected void fill( RandomAccess< T > randomAccess, long numPixels )
+	{
+		for ( long x = 0; x < numPixels; ++x )
+		{
+			randomAccess.get().set( background );
+			randomAccess.fwd( 0 );
+		}
+	}
+
+	/**
+	 * Applies the inverse transformation to every pixel of the line
+	 */
+	protected void renderLine( RandomAccess< T > randomAccess, long sizeX ) throws NoninvertibleModelException
+	{
+		for ( long x = 0; x < sizeX; ++x )
+		{
+			// get the location of the pixel and apply the transformation
+			randomAccess.localize( tmp );
+			transform.applyInverseInPlace( tmp );
+
+			// set the interpolator to the transformed location
+			realRandomAccess.setPosition( tmp );
+
+			// set the value to the target
+			randomAccess.get().set( realRandomAccess.get() );
+			randomAccess.fwd( 0 );
+		}
+	}
+}
@@ -0,0 +1,299 @@
+package net.imglib2.introduction;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * The counterpart of {@link LineReader}, writes lines of pixels along dimension 0
+ * from a double[] buffer, every value is stored as setReal() would store it.
+ *
+ * {@link #create} picks a final class for FloatType, UnsignedByteType,
+ * UnsignedShortType and BitType images (ArrayImg or PlanarImg) that writes
+ * directly into the backing arrays, so the kernels do not call setReal() of
+ * several types from the same loop. All other images are written through a
+ * RandomAccess.
+ *
+ * A LineWriter is not thread-safe, every thread needs its own.
+ */
+public abstract class LineWriter
+{
+	/**
+	 * Copies length values starting at offset of the buffer into the pixels starting
+	 * at position (in dimension 0), the position is not changed
+	 */
+	public abstract void write( long[] position, double[] buffer, int offset, int length );
+
+	/**
+	 * @return a writer specialized for the type and the container of the image,
+	 * a writer that uses a RandomAccess if there is none
+	 */
+	public static < T extends RealType< T > > LineWriter create( RandomAccessibleInterval< T > img )
+	{
+		final LineWriter writer = specialized( img );
+
+		if ( writer != null )
+			return writer;
+
+		return new RealTypeLines< T >( img );
+	}
+
+	/**
+	 * @return a writer specialized for the type and the container of the image, null if there is none
+	 */
+	public static LineWriter specialized( RandomAccessibleInterval< ? > img )
+	{
+		final Object type = Views.iterable( img ).firstElement();
+
+		if ( img instanceof ArrayImg )
+		{
+			final Object data = ( ( ArrayImg< ?, ? > ) img ).update( null );
+
+			if ( type instanceof FloatType && data instanceof FloatArray )
+				return new FloatLines( img, new float[][] { ( ( FloatArray ) data ).getCurrentStorageArray() }, img.numDimensions() );
+			else if ( type instanceof UnsignedByteType && data instanceof ByteArray )
+				return new UnsignedByteLines( img, new byte[][] { ( ( ByteArray ) data ).getCurrentStorageArray() }, img.numDimensions() );
+			else if ( type instanceof UnsignedShortType && data instanceof ShortArray )
+				return new UnsignedShortLines( img, new short[][] { ( ( ShortArray ) data ).getCurrentStorageArray() }, img.numDimensions() );
+			else if ( type instanceof BitType && data instanceof LongArray )
+				return new BitLines( img, new long[][] { ( ( LongArray ) data ).getCurrentStorageArray() }, img.numDimensions() );
+		}
+		else if ( img instanceof PlanarImg )
+		{
+			final PlanarImg< ?, ? > planarImg = ( PlanarImg< ?, ? > ) img;
+			final int numSlices = planarImg.numSlices();
+			final int planeDims = Math.min( 2, img.numDimensions() );
+
+			// all planes have to be backed by the same kind of array
+			if ( type instanceof FloatType && LineReader.allPlanes( planarImg, FloatArray.class ) )
+			{
+				final float[][] planes = new float[ numSlices ][];
+
+				for ( int p = 0; p < numSlices; ++p )
+					planes[ p ] = ( ( FloatArray ) planarImg.getPlane( p ) ).getCurrentStorageArray();
+
+				return new FloatLines( img, planes, planeDims );
+			}
+			else if ( type instanceof UnsignedByteType && LineReader.allPlanes( planarImg, ByteArray.class ) )
+			{
+				final byte[][] planes = new byte[ numSlices ][];
+
+				for ( int p = 0; p < numSlices; ++p )
+					planes[ p ] = ( ( ByteArray ) planarImg.getPlane( p ) ).getCurrentStorageArray();
+
+				return new UnsignedByteLines( img, planes, planeDims );
+			}
+			else if ( type instanceof UnsignedShortType && LineReader.allPlanes( planarImg, ShortArray.class ) )
+			{
+				final short[][] planes = new short[ numSlices ][];
+
+				for ( int p = 0; p < numSlices; ++p )
+					planes[ p ] = ( ( ShortArray ) planarImg.getPlane( p ) ).getCurrentStorageArray();
+
+				return new UnsignedShortLines( img, planes, planeDims );
+			}
+			else if ( type instanceof BitType && LineReader.allPlanes( planarImg, LongArray.class ) )
+			{
+				final long[][] planes = new long[ numSlices ][];
+
+				for ( int p = 0; p < numSlices; ++p )
+					planes[ p ] = ( ( LongArray ) planarImg.getPlane( p ) ).getCurrentStorageArray();
+
+				return new BitLines( img, planes, planeDims );
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Finds the plane and the index within the plane of a position, the same way
+	 * as {@link LineReader.PrimitiveLines}
+	 */
+	protected static abstract class PrimitiveLines extends LineWriter
+	{
+		final int n;
+		final int planeDims;
+
+		// the steps within a plane and from plane to plane
+		final long[] steps;
+
+		public PrimitiveLines( RandomAccessibleInterval< ? > img, int planeDims )
+		{
+			this.n = img.numDimensions();
+			this.planeDims = planeDims;
+			this.steps = new long[ n ];
+
+			long step = 1;
+
+			for ( int d = 0; d < n; ++d )
+			{
+				// the plane index starts again at 1 in the first dimension beyond the plane
+				if ( d == planeDims )
+					step = 1;
+
+				steps[ d ] = step;
+				step *= img.dimension( d );
+			}
+		}
+
+		public void write( final long[] position, final double[] buffer, final int offset, final int length )
+		{
+			long index = 0;
+			long plane = 0;
+
+			for ( int d = 0; d < planeDims; ++d )
+				index += position[ d ] * steps[ d ];
+
+			for ( int d = planeDims; d < n; ++d )
+				plane += position[ d ] * steps[ d ];
+
+			write( (int)plane, index, buffer, offset, length );
+		}
+
+		protected abstract void write( int plane, long index, double[] buffer, int offset, int length );
+	}
+
+	public static final class FloatLines extends PrimitiveLines
+	{
+		final float[][] planes;
+
+		public FloatLines( RandomAccessibleInterval< ? > img, float[][] planes, int planeDims )
+		{
+			super( img, planeDims );
+			this.planes = planes;
+		}
+
+		protected void write( final int plane, final long index, final double[] buffer, final int offset, final int length )
+		{
+			final float[] values = planes[ plane ];
+			final int start = (int)index;
+
+			for ( int i = 0; i < length; ++i )
+				values[ start + i ] = (float)buffer[ offset + i ];
+		}
+	}
+
+	public static final class UnsignedByteLines extends PrimitiveLines
+	{
+		final byte[][] planes;
+
+		public UnsignedByteLines( RandomAccessibleInterval< ? > img, byte[][] planes, int planeDims )
+		{
+			super( img, planeDims );
+			this.planes = planes;
+		}
+
+		protected void write( final int plane, final long index, final double[] buffer, final int offset, final int length )
+		{
+			final byte[] values = planes[ plane ];
+			final int start = (int)index;
+
+			for ( int i = 0; i < length; ++i )
+				values[ start + i ] = (byte)Util.round( buffer[ offset + i ] );
+		}
+	}
+
+	public static final class UnsignedShortLines extends PrimitiveLines
+	{
+		final short[][] planes;
+
+		public UnsignedShortLines( RandomAccessibleInterval< ? > img, short[][] planes, int planeDims )
+		{
+			super( img, planeDims );
+			this.planes = planes;
+		}
+
+		protected void write( final int plane, final long index, final double[] buffer, final int offset, final int length )
+		{
+			final short[] values = planes[ plane ];
+			final int start = (int)index;
+
+			for ( int i = 0; i < length; ++i )
+				values[ start + i ] = (short)Util.round( buffer[ offset + i ] );
+		}
+	}
+
+	/**
+	 * Pixel i of a plane is bit (i % 64) of word (i / 64) like in {@link BitMasks},
+	 * a value of at least 0.5 is 1.
+	 *
+	 * The first and the last word of a line are read, changed and written back as a
+	 * whole, they can hold pixels of the neighboring lines. Several BitLines must
+	 * therefore not write into the same plane concurrently, even if the lines differ,
+	 * e.g. split the work into ranges of planes.
+	 */
+	public static final class BitLines extends PrimitiveLines
+	{
+		final long[][] planes;
+
+		public BitLines( RandomAccessibleInterval< ? > img, long[][] planes, int planeDims )
+		{
+			super( img, planeDims );
+			this.planes = planes;
+		}
+
+		protected void write( final int plane, final long index, final double[] buffer, final int offset, final int length )
+		{
+			final long[] words = planes[ plane ];
+
+			// collect the bits in a local word, lines do not have to start or end at a word
+			long bit = index;
+			int w = (int)( bit >>> 6 );
+			long word = words[ w ];
+
+			for ( int i = 0; i < length; ++i )
+			{
+				final long b = 1l << ( bit & 63 );
+				word = buffer[ offset + i ] >= 0.5 ? word | b : word & ~b;
+
+				if ( ( ++bit & 63 ) == 0 )
+				{
+					words[ w++ ] = word;
+
+					if ( i + 1 < length )
+						word = words[ w ];
+				}
+			}
+
+			if ( ( bit & 63 ) != 0 )
+				words[ w ] = word;
+		}
+	}
+
+	/**
+	 * Any other image, written pixel by pixel using a RandomAccess
+	 */
+	public static final class RealTypeLines< T extends RealType< T > > extends LineWriter
+	{
+		final RandomAccess< T > randomAccess;
+
+		public RealTypeLines( RandomAccessibleInterval< T > img )
+		{
+			this.randomAccess = img.randomAccess();
+		}
+
+		public void write( final long[] position, final double[] buffer, final int offset, final int length )
+		{
+			randomAccess.setPosition( position );
+
+			for ( int i = 0; i < length; ++i )
+			{
+				randomAccess.get().setReal( buffer[ offset + i ] );
+				randomAccess.fwd( 0 );
+			}
+		}
+	}
+}
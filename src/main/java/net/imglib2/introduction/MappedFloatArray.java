@@ -0,0 +1,48 @@
+package net.imglib2.introduction;
+
+import java.nio.FloatBuffer;
+
+import net.imglib2.img.basictypeaccess.FloatAccess;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+
+/**
+ * A FloatAccess on a FloatBuffer, typically a view of a memory-mapped file
+ * (see {@link MappedImgs}), so that the pixels are not stored on the heap.
+ */
+public class MappedFloatArray implements FloatAccess, ArrayDataAccess< MappedFloatArray >
+{
+	final FloatBuffer data;
+
+	public MappedFloatArray( FloatBuffer data )
+	{
+		this.data = data;
+	}
+
+	public float getValue( int index )
+	{
+		return data.get( index );
+	}
+
+	public void setValue( int index, float value )
+	{
+		data.put( index, value );
+	}
+
+	/**
+	 * Creates a new array on the heap, it is not mapped to a file
+	 */
+	public MappedFloatArray createArray( int numEntities )
+	{
+		return new MappedFloatArray( FloatBuffer.allocate( numEntities ) );
+	}
+
+	/**
+	 * @return the FloatBuffer
+	 */
+	public FloatBuffer getCurrentStorageArray()
+	{
+		return data;
+	}
+
+	public void close() {}
+}
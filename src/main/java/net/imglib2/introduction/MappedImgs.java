@@ -0,0 +1,286 @@
+package net.imglib2.introduction;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Opens 32-bit float images from raw files and uncompressed TIFF files as PlanarImgs
+ * whose planes are memory-mapped from the file, nothing is copied onto the heap and
+ * the operating system pages the data in and out as needed. The image can be larger
+ * than the heap, but every plane must be smaller than 2GB.
+ *
+ * If the image is opened writable, changes of the pixels (e.g. an in-place threshold)
+ * are written to the file.
+ */
+public class MappedImgs
+{
+	// TIFF tags
+	final static int IMAGE_WIDTH = 256;
+	final static int IMAGE_LENGTH = 257;
+	final static int BITS_PER_SAMPLE = 258;
+	final static int COMPRESSION = 259;
+	final static int STRIP_OFFSETS = 273;
+	final static int SAMPLES_PER_PIXEL = 277;
+	final static int STRIP_BYTE_COUNTS = 279;
+	final static int SAMPLE_FORMAT = 339;
+
+	/**
+	 * Maps a raw file that contains float values in the given byte order
+	 *
+	 * @param file - the file
+	 * @param offset - the number of bytes before the first pixel
+	 * @param dimensions - the size of the image, the first two dimensions form a plane
+	 * @param order - the byte order of the values
+	 * @param writable - if changes of the image are written to the file
+	 */
+	public static PlanarImg< FloatType, MappedFloatArray > openRaw( File file, long offset, long[] dimensions, ByteOrder order, boolean writable ) throws IOException
+	{
+		final long planeBytes = planeSize( dimensions ) * 4;
+		final long numPlanes = numPlanes( dimensions );
+
+		final long[] planeOffsets = new long[ (int)numPlanes ];
+
+		for ( int p = 0; p < numPlanes; ++p )
+			planeOffsets[ p ] = offset + p * planeBytes;
+
+		return map( file, planeOffsets, dimensions, order, writable );
+	}
+
+	/**
+	 * Maps an uncompressed 32-bit float TIFF file, one plane per page. The strips of
+	 * each page must be stored contiguously and the pages in ascending order, which is
+	 * the case for files written by ImageJ. BigTIFF is not supported.
+	 *
+	 * ImageJ writes stacks larger than 4GB with StripOffsets that wrap around at 2^32,
+	 * like ImageJ's own reader we add multiples of 2^32 to offsets that would point
+	 * before the end of the previous plane.
+	 */
+	public static PlanarImg< FloatType, MappedFloatArray > openTiff( File file, boolean writable ) throws IOException
+	{
+		final RandomAccessFile raf = new RandomAccessFile( file, "r" );
+
+		try
+		{
+			final FileChannel channel = raf.getChannel();
+
+			// the header, byte order, magic number 42 and the offset of the first page
+			final ByteBuffer header = read( channel, 0, 8, ByteOrder.BIG_ENDIAN );
+			final ByteOrder order;
+
+			if ( header.get( 0 ) == 'I' && header.get( 1 ) == 'I' )
+				order = ByteOrder.LITTLE_ENDIAN;
+			else if ( header.get( 0 ) == 'M' && header.get( 1 ) == 'M' )
+				order = ByteOrder.BIG_ENDIAN;
+			else
+				throw new IOException( file + " is not a TIFF file" );
+
+			header.order( order );
+
+			if ( header.getShort( 2 ) != 42 )
+				throw new IOException( file + " is not a TIFF file (or a BigTIFF)" );
+
+			long pageOffset = header.getInt( 4 ) & 0xffffffffl;
+
+			long width = -1, height = -1;
+			final List< Long > planeOffsets = new ArrayList< Long >();
+
+			// the end of the previous plane, every plane has to start at or after it
+			long previousEnd = 0;
+
+			while ( pageOffset != 0 )
+			{
+				final int numEntries = read( channel, pageOffset, 2, order ).getShort( 0 ) & 0xffff;
+				final ByteBuffer entries = read( channel, pageOffset + 2, numEntries * 12 + 4, order );
+
+				long pageWidth = 0, pageHeight = 0, bitsPerSample = 1, compression = 1, samplesPerPixel = 1, sampleFormat = 1;
+				long[] stripOffsets = null, stripByteCounts = null;
+
+				for ( int e = 0; e < numEntries; ++e )
+				{
+					final int tag = entries.getShort( e * 12 ) & 0xffff;
+					final long[] values = values( channel, entries, e * 12, order );
+
+					switch ( tag )
+					{
+					case IMAGE_WIDTH: pageWidth = values[ 0 ]; break;
+					case IMAGE_LENGTH: pageHeight = values[ 0 ]; break;
+					case BITS_PER_SAMPLE: bitsPerSample = values[ 0 ]; break;
+					case COMPRESSION: compression = values[ 0 ]; break;
+					case SAMPLES_PER_PIXEL: samplesPerPixel = values[ 0 ]; break;
+					case SAMPLE_FORMAT: sampleFormat = values[ 0 ]; break;
+					case STRIP_OFFSETS: stripOffsets = values; break;
+					case STRIP_BYTE_COUNTS: stripByteCounts = values; break;
+					}
+				}
+
+				if ( bitsPerSample != 32 || sampleFormat != 3 || samplesPerPixel != 1 || compression != 1 )
+					throw new IOException( file + " is not an uncompressed 32-bit float TIFF" );
+
+				if ( stripOffsets == null || stripByteCounts == null || stripOffsets.length != stripByteCounts.length )
+					throw new IOException( file + " has no valid strips" );
+
+				if ( width == -1 )
+				{
+					width = pageWidth;
+					height = pageHeight;
+				}
+				else if ( pageWidth != width || pageHeight != height )
+				{
+					throw new IOException( file + " has pages of different size" );
+				}
+
+				// the strips have to cover exactly one plane
+				final long planeBytes = width * height * 4;
+				long stripBytes = 0;
+
+				for ( final long count : stripByteCounts )
+					stripBytes += count;
+
+				if ( stripBytes != planeBytes )
+					throw new IOException( file + " has a page with " + stripBytes + " bytes in its strips, but a plane has " + planeBytes + " bytes" );
+
+				// the strips have to follow each other to be mapped as one plane,
+				// compared modulo 2^32 as the offsets may have wrapped around
+				for ( int s = 1; s < stripOffsets.length; ++s )
+					if ( stripOffsets[ s ] != ( ( stripOffsets[ s - 1 ] + stripByteCounts[ s - 1 ] ) & 0xffffffffl ) )
+						throw new IOException( file + " has strips that are not contiguous" );
+
+				long planeOffset = stripOffsets[ 0 ];
+
+				// repair offsets that wrapped around at 2^32, only possible in files larger than 4GB
+				if ( channel.size() > 0xffffffffl )
+					while ( planeOffset < previousEnd && planeOffset + 0x100000000l + planeBytes <= channel.size() )
+						planeOffset += 0x100000000l;
+
+				if ( planeOffset < previousEnd )
+					throw new IOException( file + " has pages that are not stored in ascending order" );
+
+				if ( planeOffset + planeBytes > channel.size() )
+					throw new IOException( file + " has a page that ends at " + ( planeOffset + planeBytes ) + ", beyond the end of the file (" + channel.size() + " bytes)" );
+
+				planeOffsets.add( planeOffset );
+				previousEnd = planeOffset + planeBytes;
+
+				pageOffset = entries.getInt( numEntries * 12 ) & 0xffffffffl;
+			}
+
+			final long[] dimensions = planeOffsets.size() > 1 ? new long[] { width, height, planeOffsets.size() } : new long[] { width, height };
+			final long[] offsets = new long[ planeOffsets.size() ];
+
+			for ( int p = 0; p < offsets.length; ++p )
+				offsets[ p ] = planeOffsets.get( p );
+
+			return map( file, offsets, dimensions, order, writable );
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	/**
+	 * Maps every plane of the image from the file
+	 */
+	protected static PlanarImg< FloatType, MappedFloatArray > map( File file, long[] planeOffsets, long[] dimensions, ByteOrder order, boolean writable ) throws IOException
+	{
+		final long planeSize = planeSize( dimensions );
+
+		if ( planeSize * 4 > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "A plane of " + planeSize + " pixels cannot be mapped, the maximum is " + ( Integer.MAX_VALUE / 4 ) );
+
+		final PlanarImg< FloatType, MappedFloatArray > img = new PlanarImg< FloatType, MappedFloatArray >( dimensions, 1 );
+
+		final RandomAccessFile raf = new RandomAccessFile( file, writable ? "rw" : "r" );
+
+		try
+		{
+			final FileChannel channel = raf.getChannel();
+
+			// mapping beyond the end would grow a writable file instead of failing
+			for ( int p = 0; p < planeOffsets.length; ++p )
+				if ( planeOffsets[ p ] < 0 || planeOffsets[ p ] + planeSize * 4 > channel.size() )
+					throw new IOException( "Plane " + p + " ends at " + ( planeOffsets[ p ] + planeSize * 4 ) + ", beyond the end of " + file + " (" + channel.size() + " bytes)" );
+
+			// the mapping stays valid after the file is closed
+			for ( int p = 0; p < planeOffsets.length; ++p )
+				img.setPlane( p, new MappedFloatArray( channel.map( writable ? MapMode.READ_WRITE : MapMode.READ_ONLY, planeOffsets[ p ], planeSize * 4 ).order( order ).asFloatBuffer() ) );
+		}
+		finally
+		{
+			raf.close();
+		}
+
+		// create a linked type for the image
+		img.setLinkedType( new FloatType( img ) );
+
+		return img;
+	}
+
+	/**
+	 * @return the values of a TIFF entry of type SHORT or LONG, stored in the entry
+	 * itself if they fit into 4 bytes and at the offset it contains otherwise
+	 */
+	protected static long[] values( FileChannel channel, ByteBuffer entries, int entry, ByteOrder order ) throws IOException
+	{
+		final int type = entries.getShort( entry + 2 ) & 0xffff;
+		final int count = entries.getInt( entry + 4 );
+		final int bytes = type == 3 ? 2 : 4;
+
+		final ByteBuffer buffer;
+		final int start;
+
+		if ( count * bytes <= 4 )
+		{
+			buffer = entries;
+			start = entry + 8;
+		}
+		else
+		{
+			buffer = read( channel, entries.getInt( entry + 8 ) & 0xffffffffl, count * bytes, order );
+			start = 0;
+		}
+
+		final long[] values = new long[ count ];
+
+		for ( int i = 0; i < count; ++i )
+			values[ i ] = type == 3 ? buffer.getShort( start + i * 2 ) & 0xffff : buffer.getInt( start + i * 4 ) & 0xffffffffl;
+
+		return values;
+	}
+
+	protected static ByteBuffer read( FileChannel channel, long position, int size, ByteOrder order ) throws IOException
+	{
+		final ByteBuffer buffer = ByteBuffer.allocate( size ).order( order );
+
+		while ( buffer.hasRemaining() )
+			if ( channel.read( buffer, position + buffer.position() ) < 0 )
+				throw new IOException( "Unexpected end of file" );
+
+		return buffer;
+	}
+
+	protected static long planeSize( long[] dimensions )
+	{
+		return dimensions.length > 1 ? dimensions[ 0 ] * dimensions[ 1 ] : dimensions[ 0 ];
+	}
+
+	protected static long numPlanes( long[] dimensions )
+	{
+		long numPlanes = 1;
+
+		for ( int d = 2; d < dimensions.length; ++d )
+			numPlanes *= dimensions[ d ];
+
+		return numPlanes;
+	}
+}
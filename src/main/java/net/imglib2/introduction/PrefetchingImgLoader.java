@@ -0,0 +1,179 @@
+package net.imglib2.introduction;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import io.scif.img.ImgOpener;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Loads a list of files with ImgOpener on background threads ahead of their use.
+ * Loaded images are handed out by {@link #take()} in the order they are finished
+ * and count against the limits until they are passed to {@link #release(Loaded)}.
+ *
+ * The loader only starts to decode a file if less than maxImages images are loaded
+ * or being loaded, and if the loaded images use less than maxBytes. The size of an
+ * image is only known once it is decoded, so the memory used can exceed maxBytes by
+ * at most one image per loader thread.
+ */
+public class PrefetchingImgLoader< T extends RealType< T > & NativeType< T > >
+{
+	// a loaded image or the reason why it could not be loaded
+	public static class Loaded< T >
+	{
+		public final File file;
+		public final Img< T > img;
+		public final Exception error;
+		public final long loadNanos;
+		final long bytes;
+
+		Loaded( File file, Img< T > img, Exception error, long loadNanos, long bytes )
+		{
+			this.file = file;
+			this.img = img;
+			this.error = error;
+			this.loadNanos = loadNanos;
+			this.bytes = bytes;
+		}
+	}
+
+	final ImgFactory< T > factory;
+	final T type;
+	final int maxImages;
+	final long maxBytes;
+
+	final ExecutorService service;
+	final BlockingQueue< Loaded< T > > loaded = new LinkedBlockingQueue< Loaded< T > >();
+
+	// the number of images and bytes that are loaded and not yet released, guarded by this
+	int numImages = 0;
+	long numBytes = 0;
+
+	// the ImgOpener is not thread-safe, every loader thread has its own
+	final ThreadLocal< ImgOpener > imgOpener = new ThreadLocal< ImgOpener >()
+	{
+		protected ImgOpener initialValue()
+		{
+			return new ImgOpener();
+		}
+	};
+
+	/**
+	 * Starts loading the files in the background
+	 *
+	 * @param files - the files to load, {@link #take()} has to be called once for every file
+	 * @param factory - the ImgFactory used for the loaded images
+	 * @param type - the type of the loaded images
+	 * @param numThreads - the number of threads that decode files
+	 * @param maxImages - the maximal number of images that are loaded ahead
+	 * @param maxBytes - the memory budget of the images that are loaded ahead
+	 */
+	public PrefetchingImgLoader( List< File > files, ImgFactory< T > factory, T type, int numThreads, int maxImages, long maxBytes )
+	{
+		this.factory = factory;
+		this.type = type;
+		this.maxImages = Math.max( 1, maxImages );
+		this.maxBytes = maxBytes;
+		this.service = Executors.newFixedThreadPool( numThreads );
+
+		for ( final File file : files )
+		{
+			service.submit( new Runnable()
+			{
+				public void run()
+				{
+					load( file );
+				}
+			});
+		}
+
+		// the threads end once all files are loaded
+		service.shutdown();
+	}
+
+	protected void load( File file )
+	{
+		try
+		{
+			acquire();
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+
+			// counted like any other file since it is released by the caller
+			synchronized ( this )
+			{
+				++numImages;
+			}
+
+			loaded.add( new Loaded< T >( file, null, e, 0, 0 ) );
+			return;
+		}
+
+		final long start = System.nanoTime();
+
+		try
+		{
+			final Img< T > img = imgOpener.get().openImg( file.getAbsolutePath(), factory, type );
+			final long bytes = img.size() * type.getBitsPerPixel() / 8;
+
+			synchronized ( this )
+			{
+				numBytes += bytes;
+			}
+
+			loaded.add( new Loaded< T >( file, img, null, System.nanoTime() - start, bytes ) );
+		}
+		catch ( Exception e )
+		{
+			// the file does not use memory, it is released right away by the caller
+			loaded.add( new Loaded< T >( file, null, e, System.nanoTime() - start, 0 ) );
+		}
+	}
+
+	/**
+	 * Waits until there is room for another image
+	 */
+	protected synchronized void acquire() throws InterruptedException
+	{
+		while ( numImages >= maxImages || ( numImages > 0 && numBytes >= maxBytes ) )
+			wait();
+
+		++numImages;
+	}
+
+	/**
+	 * @return the next loaded image, waits until one is available
+	 */
+	public Loaded< T > take() throws InterruptedException
+	{
+		return loaded.take();
+	}
+
+	/**
+	 * Returns the memory of an image that was taken and is no longer used to the budget
+	 */
+	public synchronized void release( Loaded< T > image )
+	{
+		--numImages;
+		numBytes -= image.bytes;
+
+		notifyAll();
+	}
+
+	/**
+	 * Stops loading, files that are currently decoded are finished
+	 */
+	public void close()
+	{
+		service.shutdownNow();
+	}
+}
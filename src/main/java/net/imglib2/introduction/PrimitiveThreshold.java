@@ -0,0 +1,75 @@
+package net.imglib2.introduction;
+
+import java.nio.FloatBuffer;
+
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * In-place threshold of FloatType images directly on the float[] arrays backing
+ * an ArrayImg or the planes of a PlanarImg (e.g. images wrapped from ImageJ),
+ * or directly on the FloatBuffers of a memory-mapped PlanarImg (see {@link MappedImgs}).
+ * The loop has no branches and no method calls, so that the JIT is able to
+ * vectorize it.
+ */
+public class PrimitiveThreshold
+{
+	/**
+	 * Sets every pixel to 255 if it is larger than the threshold, 0 otherwise.
+	 *
+	 * @return false if the Img is not backed by float[] arrays or FloatBuffers, nothing was done then
+	 */
+	public static boolean threshold( Img< FloatType > img, float threshold )
+	{
+		if ( img instanceof ArrayImg )
+		{
+			final Object data = ( ( ArrayImg< ?, ? > ) img ).update( null );
+
+			if ( data instanceof FloatArray )
+			{
+				threshold( ( ( FloatArray ) data ).getCurrentStorageArray(), threshold );
+				return true;
+			}
+		}
+		else if ( img instanceof PlanarImg )
+		{
+			final PlanarImg< ?, ? > planarImg = ( PlanarImg< ?, ? > ) img;
+
+			// all planes have to be backed by float[] or be memory-mapped
+			for ( int p = 0; p < planarImg.numSlices(); ++p )
+				if ( !( planarImg.getPlane( p ) instanceof FloatArray || planarImg.getPlane( p ) instanceof MappedFloatArray ) )
+					return false;
+
+			for ( int p = 0; p < planarImg.numSlices(); ++p )
+			{
+				final Object plane = planarImg.getPlane( p );
+
+				if ( plane instanceof FloatArray )
+					threshold( ( ( FloatArray ) plane ).getCurrentStorageArray(), threshold );
+				else
+					threshold( ( ( MappedFloatArray ) plane ).getCurrentStorageArray(), threshold );
+			}
+
+			return true;
+		}
+
+		return false;
+	}
+
+	public static void threshold( final float[] values, final float threshold )
+	{
+		for ( int i = 0; i < values.length; ++i )
+			values[ i ] = values[ i ] > threshold ? 255 : 0;
+	}
+
+	public static void threshold( final FloatBuffer values, final float threshold )
+	{
+		final int size = values.limit();
+
+		for ( int i = 0; i < size; ++i )
+			values.put( i, values.get( i ) > threshold ? 255 : 0 );
+	}
+}
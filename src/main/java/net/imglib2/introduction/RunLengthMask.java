@@ -0,0 +1,619 @@
+package net.imglib2.introduction;
+
+import java.util.Iterator;
+import java.util.List;
+
+import net.imglib2.AbstractCursor;
+import net.imglib2.AbstractInterval;
+import net.imglib2.Cursor;
+import net.imglib2.FlatIterationOrder;
+import net.imglib2.Interval;
+import net.imglib2.IterableRealInterval;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.Type;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.view.Views;
+
+/**
+ * A binary mask stored as the runs of foreground pixels along dimension 0, line by
+ * line. The memory is proportional to the number of runs (plus one int per line),
+ * not to the number of pixels, which makes it suitable for sparse masks.
+ *
+ * The {@link #foregroundCursor()} only visits foreground pixels, so computations
+ * on the foreground (e.g. area or center of mass) take time proportional to the
+ * size of the foreground. As an Img it can also be iterated pixel by pixel in flat
+ * order, e.g. to display it or to pass it to methods that expect a BitType image.
+ *
+ * The mask is read-only, changing the value returned by a Cursor or RandomAccess
+ * has no effect on the mask. It is created by the threshold methods, e.g.
+ * {@link #threshold(RandomAccessibleInterval, Comparable)} or the sparse thresholds
+ * of ImgLib2_Threshold4/5/6.
+ */
+public class RunLengthMask extends AbstractInterval implements Img< BitType >
+{
+	// the runs of line l are lineOffsets[ l ] ... lineOffsets[ l + 1 ] - 1
+	final int[] lineOffsets;
+
+	// the start (inclusive) and end (exclusive) of every run relative to min[ 0 ]
+	final long[] runStart;
+	final long[] runEnd;
+	final int numRuns;
+
+	protected RunLengthMask( Interval interval, int[] lineOffsets, long[] runStart, long[] runEnd, int numRuns )
+	{
+		super( interval );
+
+		this.lineOffsets = lineOffsets;
+		this.runStart = runStart;
+		this.runEnd = runEnd;
+		this.numRuns = numRuns;
+	}
+
+	/**
+	 * Creates the mask of all pixels larger than the threshold, the image is read once
+	 * in flat order and the runs are collected on the fly
+	 */
+	public static < T extends Comparable< T > & Type< T > > RunLengthMask threshold( RandomAccessibleInterval< T > image, T threshold )
+	{
+		final long sizeX = image.dimension( 0 );
+		final long numLines = Views.iterable( image ).size() / sizeX;
+
+		if ( numLines >= Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "Too many lines: " + numLines );
+
+		final int[] lineOffsets = new int[ (int)numLines + 1 ];
+		long[] runStart = new long[ 16 ];
+		long[] runEnd = new long[ 16 ];
+		int numRuns = 0;
+
+		final Cursor< T > cursor = Views.flatIterable( image ).cursor();
+
+		for ( int line = 0; line < numLines; ++line )
+		{
+			lineOffsets[ line ] = numRuns;
+
+			// the start of the current run, -1 if we are in the background
+			long start = -1;
+
+			for ( long x = 0; x < sizeX; ++x )
+			{
+				final boolean foreground = cursor.next().compareTo( threshold ) > 0;
+
+				if ( foreground && start < 0 )
+				{
+					start = x;
+				}
+				else if ( !foreground && start >= 0 )
+				{
+					if ( numRuns == runStart.length )
+					{
+						runStart = grow( runStart );
+						runEnd = grow( runEnd );
+					}
+
+					runStart[ numRuns ] = start;
+					runEnd[ numRuns++ ] = x;
+					start = -1;
+				}
+			}
+
+			// a run that ends at the end of the line
+			if ( start >= 0 )
+			{
+				if ( numRuns == runStart.length )
+				{
+					runStart = grow( runStart );
+					runEnd = grow( runEnd );
+				}
+
+				runStart[ numRuns ] = start;
+				runEnd[ numRuns++ ] = sizeX;
+			}
+		}
+
+		lineOffsets[ (int)numLines ] = numRuns;
+
+		return new RunLengthMask( image, lineOffsets, runStart, runEnd, numRuns );
+	}
+
+	/**
+	 * Joins the masks of consecutive parts of an image along the last dimension,
+	 * e.g. computed in parallel, into the mask of the whole image
+	 *
+	 * @param interval - the whole image
+	 * @param parts - the masks of the parts in the order of the last dimension
+	 */
+	public static RunLengthMask concatenate( Interval interval, List< RunLengthMask > parts )
+	{
+		int numLines = 0;
+		int numRuns = 0;
+
+		for ( final RunLengthMask part : parts )
+		{
+			numLines += part.lineOffsets.length - 1;
+			numRuns += part.numRuns;
+		}
+
+		final int[] lineOffsets = new int[ numLines + 1 ];
+		final long[] runStart = new long[ Math.max( 1, numRuns ) ];
+		final long[] runEnd = new long[ Math.max( 1, numRuns ) ];
+
+		int line = 0;
+		int run = 0;
+
+		for ( final RunLengthMask part : parts )
+		{
+			final int partLines = part.lineOffsets.length - 1;
+
+			for ( int l = 0; l < partLines; ++l )
+				lineOffsets[ line + l ] = run + part.lineOffsets[ l ];
+
+			System.arraycopy( part.runStart, 0, runStart, run, part.numRuns );
+			System.arraycopy( part.runEnd, 0, runEnd, run, part.numRuns );
+
+			line += partLines;
+			run += part.numRuns;
+		}
+
+		lineOffsets[ numLines ] = numRuns;
+
+		return new RunLengthMask( interval, lineOffsets, runStart, runEnd, numRuns );
+	}
+
+	protected static long[] grow( long[] array )
+	{
+		final long[] newArray = new long[ array.length * 2 ];
+		System.arraycopy( array, 0, newArray, 0, array.length );
+
+		return newArray;
+	}
+
+	public int numRuns()
+	{
+		return numRuns;
+	}
+
+	/**
+	 * @return the number of foreground pixels
+	 */
+	public long area()
+	{
+		long area = 0;
+
+		for ( int r = 0; r < numRuns; ++r )
+			area += runEnd[ r ] - runStart[ r ];
+
+		return area;
+	}
+
+	/**
+	 * @return the center of mass of the foreground, computed from the runs without visiting the pixels
+	 */
+	public double[] centerOfMass()
+	{
+		final double[] sums = new double[ n ];
+		final long[] position = new long[ n ];
+		long area = 0;
+
+		for ( int line = 0; line < lineOffsets.length - 1; ++line )
+		{
+			if ( lineOffsets[ line ] == lineOffsets[ line + 1 ] )
+				continue;
+
+			linePosition( line, position );
+
+			for ( int r = lineOffsets[ line ]; r < lineOffsets[ line + 1 ]; ++r )
+			{
+				final long count = runEnd[ r ] - runStart[ r ];
+
+				// the sum of min + start ... min + end - 1
+				sums[ 0 ] += count * ( min[ 0 ] + ( runStart[ r ] + runEnd[ r ] - 1 ) / 2.0 );
+
+				for ( int d = 1; d < n; ++d )
+					sums[ d ] += count * position[ d ];
+
+				area += count;
+			}
+		}
+
+		for ( int d = 0; d < n; ++d )
+			sums[ d ] /= area;
+
+		return sums;
+	}
+
+	/**
+	 * Sets the position in dimensions 1 ... n-1 of the line
+	 */
+	protected void linePosition( long line, long[] position )
+	{
+		for ( int d = 1; d < n; ++d )
+		{
+			final long size = dimension( d );
+			position[ d ] = min[ d ] + line % size;
+			line /= size;
+		}
+	}
+
+	/**
+	 * @return the index of the line that contains the position
+	 */
+	protected int lineIndex( long[] position )
+	{
+		long line = 0;
+
+		for ( int d = n - 1; d >= 1; --d )
+			line = line * dimension( d ) + position[ d ] - min[ d ];
+
+		return (int)line;
+	}
+
+	/**
+	 * @return a cursor that only visits the foreground pixels, line by line
+	 */
+	public Cursor< BitType > foregroundCursor()
+	{
+		return new ForegroundCursor();
+	}
+
+	public RandomAccess< BitType > randomAccess()
+	{
+		return new MaskRandomAccess();
+	}
+
+	/**
+	 * @return a cursor over all pixels in flat order
+	 */
+	public Cursor< BitType > cursor()
+	{
+		return new MaskCursor();
+	}
+
+	public Cursor< BitType > localizingCursor()
+	{
+		return cursor();
+	}
+
+	public Iterator< BitType > iterator()
+	{
+		return cursor();
+	}
+
+	public long size()
+	{
+		long size = 1;
+
+		for ( int d = 0; d < n; ++d )
+			size *= dimension( d );
+
+		return size;
+	}
+
+	public BitType firstElement()
+	{
+		return cursor().next();
+	}
+
+	public FlatIterationOrder iterationOrder()
+	{
+		return new FlatIterationOrder( this );
+	}
+
+	public boolean equalIterationOrder( IterableRealInterval< ? > f )
+	{
+		return iterationOrder().equals( f.iterationOrder() );
+	}
+
+	/**
+	 * @return a factory for writable BitType images, a RunLengthMask can only be created by thresholding
+	 */
+	public ImgFactory< BitType > factory()
+	{
+		return new ArrayImgFactory< BitType >();
+	}
+
+	public RunLengthMask copy()
+	{
+		return new RunLengthMask( this, lineOffsets.clone(), runStart.clone(), runEnd.clone(), numRuns );
+	}
+
+	public RandomAccess< BitType > randomAccess( Interval interval )
+	{
+		return randomAccess();
+	}
+
+	/**
+	 * Finds the run that contains the position by bisection in the runs of its line
+	 */
+	protected class MaskRandomAccess extends Point implements RandomAccess< BitType >
+	{
+		final BitType value = new BitType();
+
+		public MaskRandomAccess()
+		{
+			super( RunLengthMask.this.n );
+			RunLengthMask.this.min( position );
+		}
+
+		public BitType get()
+		{
+			final int line = lineIndex( position );
+			final long x = position[ 0 ] - min[ 0 ];
+
+			// the last run that starts at or before x
+			int low = lineOffsets[ line ];
+			int high = lineOffsets[ line + 1 ] - 1;
+
+			while ( low <= high )
+			{
+				final int mid = ( low + high ) >>> 1;
+
+				if ( runStart[ mid ] <= x )
+					low = mid + 1;
+				else
+					high = mid - 1;
+			}
+
+			value.set( high >= lineOffsets[ line ] && x < runEnd[ high ] );
+
+			return value;
+		}
+
+		public MaskRandomAccess copy()
+		{
+			final MaskRandomAccess copy = new MaskRandomAccess();
+			copy.setPosition( this );
+
+			return copy;
+		}
+
+		public MaskRandomAccess copyRandomAccess()
+		{
+			return copy();
+		}
+	}
+
+	/**
+	 * Iterates all pixels in flat order, the value is found by moving along the
+	 * runs of the current line
+	 */
+	protected class MaskCursor extends AbstractCursor< BitType >
+	{
+		final BitType value = new BitType();
+		final long[] position;
+		final long sizeX;
+		final int numLines;
+
+		// the current line, the position in the line relative to min[ 0 ] and the
+		// first run of the line that does not end before x
+		int line;
+		long x;
+		int run;
+
+		public MaskCursor()
+		{
+			super( RunLengthMask.this.n );
+
+			this.position = new long[ n ];
+			this.sizeX = dimension( 0 );
+			this.numLines = lineOffsets.length - 1;
+
+			reset();
+		}
+
+		public BitType get()
+		{
+			final int lineEnd = lineOffsets[ line + 1 ];
+
+			while ( run < lineEnd && runEnd[ run ] <= x )
+				++run;
+
+			value.set( run < lineEnd && runStart[ run ] <= x );
+
+			return value;
+		}
+
+		public void fwd()
+		{
+			if ( ++x == sizeX )
+			{
+				x = 0;
+				++line;
+				run = lineOffsets[ line ];
+				linePosition( line, position );
+			}
+		}
+
+		public void jumpFwd( final long steps )
+		{
+			final long index = line * sizeX + x + steps;
+
+			line = (int)( index / sizeX );
+			x = index % sizeX;
+			run = lineOffsets[ line ];
+			linePosition( line, position );
+		}
+
+		public boolean hasNext()
+		{
+			return x + 1 < sizeX || line + 1 < numLines;
+		}
+
+		public void reset()
+		{
+			// one before the first pixel
+			line = 0;
+			x = -1;
+			run = lineOffsets[ 0 ];
+			linePosition( 0, position );
+		}
+
+		public void localize( long[] pos )
+		{
+			pos[ 0 ] = min[ 0 ] + x;
+
+			for ( int d = 1; d < n; ++d )
+				pos[ d ] = position[ d ];
+		}
+
+		public void localize( int[] pos )
+		{
+			pos[ 0 ] = (int)( min[ 0 ] + x );
+
+			for ( int d = 1; d < n; ++d )
+				pos[ d ] = (int)position[ d ];
+		}
+
+		public long getLongPosition( int d )
+		{
+			return d == 0 ? min[ 0 ] + x : position[ d ];
+		}
+
+		public int getIntPosition( int d )
+		{
+			return (int)getLongPosition( d );
+		}
+
+		public MaskCursor copy()
+		{
+			final MaskCursor copy = new MaskCursor();
+
+			copy.line = line;
+			copy.x = x;
+			copy.run = run;
+			System.arraycopy( position, 0, copy.position, 0, n );
+
+			return copy;
+		}
+
+		public MaskCursor copyCursor()
+		{
+			return copy();
+		}
+	}
+
+	/**
+	 * Iterates all pixels of all runs, get() is always true
+	 */
+	protected class ForegroundCursor extends AbstractCursor< BitType >
+	{
+		final BitType value = new BitType( true );
+		final long[] position;
+
+		// the current run, its line and the position in the run relative to min[ 0 ]
+		int run;
+		int line;
+		long x;
+
+		public ForegroundCursor()
+		{
+			super( RunLengthMask.this.n );
+
+			this.position = new long[ n ];
+			reset();
+		}
+
+		public BitType get()
+		{
+			return value;
+		}
+
+		public void fwd()
+		{
+			if ( x + 1 < runEnd[ run ] )
+			{
+				++x;
+			}
+			else
+			{
+				++run;
+				x = runStart[ run ];
+				updateLine();
+			}
+		}
+
+		public boolean hasNext()
+		{
+			return numRuns > 0 && ( x + 1 < runEnd[ run ] || run + 1 < numRuns );
+		}
+
+		public void reset()
+		{
+			run = 0;
+			line = 0;
+
+			// one before the first pixel of the first run
+			x = numRuns > 0 ? runStart[ 0 ] - 1 : -1;
+
+			if ( numRuns > 0 )
+			{
+				while ( lineOffsets[ line + 1 ] <= run )
+					++line;
+
+				linePosition( line, position );
+			}
+		}
+
+		/**
+		 * Moves to the line of the current run
+		 */
+		protected void updateLine()
+		{
+			if ( lineOffsets[ line + 1 ] > run )
+				return;
+
+			while ( lineOffsets[ line + 1 ] <= run )
+				++line;
+
+			linePosition( line, position );
+		}
+
+		public void localize( long[] pos )
+		{
+			pos[ 0 ] = min[ 0 ] + x;
+
+			for ( int d = 1; d < n; ++d )
+				pos[ d ] = position[ d ];
+		}
+
+		public void localize( int[] pos )
+		{
+			pos[ 0 ] = (int)( min[ 0 ] + x );
+
+			for ( int d = 1; d < n; ++d )
+				pos[ d ] = (int)position[ d ];
+		}
+
+		public long getLongPosition( int d )
+		{
+			return d == 0 ? min[ 0 ] + x : position[ d ];
+		}
+
+		public int getIntPosition( int d )
+		{
+			return (int)getLongPosition( d );
+		}
+
+		public ForegroundCursor copy()
+		{
+			final ForegroundCursor copy = new ForegroundCursor();
+
+			copy.run = run;
+			copy.line = line;
+			copy.x = x;
+			System.arraycopy( position, 0, copy.position, 0, n );
+
+			return copy;
+		}
+
+		public ForegroundCursor copyCursor()
+		{
+			return copy();
+		}
+	}
+}
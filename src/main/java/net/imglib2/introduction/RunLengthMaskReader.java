@@ -0,0 +1,169 @@
+package net.imglib2.introduction;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Reads masks written by {@link RunLengthMaskWriter}. Only the header and the index
+ * of the blocks are read when the file is opened, every block is decoded on its own
+ * when it is needed. The last decoded block is kept, so reading pixels in flat order
+ * decodes every block once.
+ */
+public class RunLengthMaskReader
+{
+	final RandomAccessFile file;
+	final long[] dimensions;
+	final long numPixels;
+	final long blockSize;
+	final long[] blockOffsets;
+
+	// the last decoded block
+	long currentBlock = -1;
+	long[] currentWords = null;
+
+	public RunLengthMaskReader( File file ) throws IOException
+	{
+		this.file = new RandomAccessFile( file, "r" );
+
+		if ( this.file.readInt() != RunLengthMaskWriter.MAGIC )
+		{
+			this.file.close();
+			throw new IOException( file + " is not a run-length encoded mask" );
+		}
+
+		this.dimensions = new long[ this.file.readInt() ];
+
+		long numPixels = 1;
+
+		for ( int d = 0; d < dimensions.length; ++d )
+		{
+			dimensions[ d ] = this.file.readLong();
+			numPixels *= dimensions[ d ];
+		}
+
+		this.numPixels = numPixels;
+		this.blockSize = this.file.readLong();
+		this.blockOffsets = new long[ (int)( ( numPixels + blockSize - 1 ) / blockSize ) + 1 ];
+
+		// the offset of the index is the last long of the file
+		this.file.seek( this.file.length() - 8 );
+		this.file.seek( this.file.readLong() );
+
+		for ( int b = 0; b < blockOffsets.length; ++b )
+			blockOffsets[ b ] = this.file.readLong();
+	}
+
+	public long[] getDimensions()
+	{
+		return dimensions.clone();
+	}
+
+	public long getBlockSize()
+	{
+		return blockSize;
+	}
+
+	public int numBlocks()
+	{
+		return blockOffsets.length - 1;
+	}
+
+	/**
+	 * @return the number of pixels of the block, only the last block can be smaller than the block size
+	 */
+	public long blockPixels( int block )
+	{
+		return Math.min( blockSize, numPixels - block * blockSize );
+	}
+
+	/**
+	 * Decodes one block, pixel i of the block is bit (i % 64) of word (i / 64)
+	 * like in the long[] of a BitType ArrayImg
+	 */
+	public synchronized long[] readBlock( int block ) throws IOException
+	{
+		final long size = blockPixels( block );
+		final long[] words = new long[ (int)( ( size + 63 ) / 64 ) ];
+		final byte[] bytes = new byte[ (int)( blockOffsets[ block + 1 ] - blockOffsets[ block ] ) ];
+
+		file.seek( blockOffsets[ block ] );
+		file.readFully( bytes );
+
+		// the runs alternate between 0 and 1, starting with 0
+		boolean value = false;
+		long pixel = 0;
+		int i = 0;
+
+		while ( pixel < size )
+		{
+			// decode the next run length
+			long run = 0;
+			int shift = 0;
+			int b;
+
+			do
+			{
+				b = bytes[ i++ ];
+				run |= (long)( b & 0x7f ) << shift;
+				shift += 7;
+			}
+			while ( ( b & 0x80 ) != 0 );
+
+			if ( value )
+				setBits( words, pixel, pixel + run );
+
+			pixel += run;
+			value = !value;
+		}
+
+		return words;
+	}
+
+	/**
+	 * @return the value of the pixel at the position
+	 */
+	public synchronized boolean get( long[] position ) throws IOException
+	{
+		// the index of the pixel in flat order
+		long index = 0;
+
+		for ( int d = dimensions.length - 1; d >= 0; --d )
+			index = index * dimensions[ d ] + position[ d ];
+
+		final long block = index / blockSize;
+		final long i = index % blockSize;
+
+		if ( block != currentBlock )
+		{
+			currentWords = readBlock( (int)block );
+			currentBlock = block;
+		}
+
+		return ( currentWords[ (int)( i >>> 6 ) ] & ( 1l << ( i & 63 ) ) ) != 0;
+	}
+
+	public void close() throws IOException
+	{
+		file.close();
+	}
+
+	/**
+	 * Sets the bits from (including) to (excluding)
+	 */
+	protected static void setBits( long[] words, long from, long to )
+	{
+		for ( long i = from; i < to; )
+		{
+			final int word = (int)( i >>> 6 );
+			final int bit = (int)( i & 63 );
+			final int count = (int)Math.min( 64 - bit, to - i );
+
+			// count ones starting at bit
+			final long mask = count == 64 ? -1l : ( ( 1l << count ) - 1 ) << bit;
+
+			words[ word ] |= mask;
+			i += count;
+		}
+	}
+}
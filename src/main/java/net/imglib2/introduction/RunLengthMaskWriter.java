@@ -0,0 +1,147 @@
+package net.imglib2.introduction;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Writes a binary mask to a file while it is produced, pixel by pixel in flat
+ * iteration order, so the mask never has to be held in memory. The pixels are
+ * grouped into blocks of a fixed number of pixels (e.g. one plane), every block
+ * is stored as the lengths of its runs of equal values, alternating between 0 and
+ * 1 and starting with 0. An index of the offsets of all blocks at the end of the
+ * file allows {@link RunLengthMaskReader} to decode single blocks.
+ *
+ * File layout (big endian):
+ *
+ *   int magic, int numDimensions, long[] dimensions, long blockSize,
+ *   blocks (run lengths as variable length integers, 7 bits per byte),
+ *   long[] offsets of all blocks and the end of the last block, long offset of the index
+ */
+public class RunLengthMaskWriter
+{
+	final static int MAGIC = 0x524c454d; // "RLEM"
+
+	final DataOutputStream out;
+	final long numPixels;
+	final long blockSize;
+	final long[] blockOffsets;
+
+	// the number of bytes written so far
+	long position = 0;
+
+	// the number of pixels written, the current value and the length of its run
+	long pixel = 0;
+	boolean value = false;
+	long run = 0;
+
+	/**
+	 * @param file - the file, it is overwritten
+	 * @param dimensions - the size of the mask
+	 * @param blockSize - the number of pixels of each block (the last block can be smaller)
+	 */
+	public RunLengthMaskWriter( File file, long[] dimensions, long blockSize ) throws IOException
+	{
+		long numPixels = 1;
+
+		for ( long d : dimensions )
+			numPixels *= d;
+
+		this.numPixels = numPixels;
+		this.blockSize = blockSize;
+		this.blockOffsets = new long[ (int)( ( numPixels + blockSize - 1 ) / blockSize ) + 1 ];
+		this.out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( file ), 1 << 16 ) );
+
+		out.writeInt( MAGIC );
+		out.writeInt( dimensions.length );
+
+		for ( long d : dimensions )
+			out.writeLong( d );
+
+		out.writeLong( blockSize );
+
+		position = 4 + 4 + 8 * dimensions.length + 8;
+		blockOffsets[ 0 ] = position;
+	}
+
+	/**
+	 * Adds the next pixel
+	 */
+	public void add( boolean pixelValue ) throws IOException
+	{
+		if ( pixelValue != value )
+		{
+			writeRun();
+			value = pixelValue;
+		}
+
+		++run;
+		++pixel;
+
+		// the block is complete, the next block starts with a run of 0
+		if ( pixel % blockSize == 0 || pixel == numPixels )
+		{
+			writeRun();
+			value = false;
+			blockOffsets[ (int)( ( pixel + blockSize - 1 ) / blockSize ) ] = position;
+		}
+	}
+
+	/**
+	 * Writes the index and closes the file, all pixels must have been added
+	 */
+	public void close() throws IOException
+	{
+		if ( pixel != numPixels )
+		{
+			out.close();
+			throw new IOException( "Only " + pixel + " of " + numPixels + " pixels were written" );
+		}
+
+		final long indexOffset = position;
+
+		for ( long offset : blockOffsets )
+			out.writeLong( offset );
+
+		out.writeLong( indexOffset );
+		out.close();
+	}
+
+	/**
+	 * Closes the file without writing the index, e.g. after a failure while adding
+	 * the pixels. The file is incomplete and cannot be read.
+	 */
+	public void abort()
+	{
+		try
+		{
+			out.close();
+		}
+		catch ( IOException e )
+		{
+			// the file is incomplete anyway
+		}
+	}
+
+	/**
+	 * Writes the length of the current run (which can be 0) and starts a new one
+	 */
+	protected void writeRun() throws IOException
+	{
+		long length = run;
+
+		while ( length >= 0x80 )
+		{
+			out.write( (int)( length & 0x7f ) | 0x80 );
+			length >>>= 7;
+			++position;
+		}
+
+		out.write( (int)length );
+		++position;
+
+		run = 0;
+	}
+}
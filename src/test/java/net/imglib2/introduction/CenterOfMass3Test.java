@@ -0,0 +1,162 @@
+package net.imglib2.introduction;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.introduction.ImgLib2_CenterOfMass3.ObjectStatistics;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+import org.junit.Test;
+
+/**
+ * Labels objects whose parts get different labels in the first slabs and are only
+ * merged by the union-find structure in later slabs, and compares the statistics
+ * with the ones computed from the known objects
+ */
+public class CenterOfMass3Test
+{
+	/**
+	 * The pixels in flat order, '.' is background, every letter an object, 'a' is
+	 * the object that is encountered first, 'b' the second one, ...
+	 */
+	static void assertObjects( String pixels, long... dimensions )
+	{
+		final Img< BitType > mask = new ArrayImgFactory< BitType >().create( dimensions, new BitType() );
+		final Img< FloatType > img = new ArrayImgFactory< FloatType >().create( dimensions, new FloatType() );
+
+		// the expected statistics, the intensities differ so that the center is weighted
+		final int n = dimensions.length;
+		final long[] count = new long[ 26 ];
+		final double[] intensity = new double[ 26 ];
+		final double[] weightedLocation = new double[ 26 * n ];
+		int numObjects = 0;
+
+		final Cursor< BitType > cursor = mask.localizingCursor();
+		final Cursor< FloatType > cursorImg = img.cursor();
+		int i = 0;
+
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+
+			final float value = 1 + ( i * 7 ) % 5;
+			cursorImg.next().set( value );
+
+			final char c = pixels.charAt( i++ );
+
+			if ( c == '.' )
+				continue;
+
+			final int o = c - 'a';
+			numObjects = Math.max( numObjects, o + 1 );
+
+			cursor.get().set( true );
+			++count[ o ];
+			intensity[ o ] += value;
+
+			for ( int d = 0; d < n; ++d )
+				weightedLocation[ o * n + d ] += cursor.getDoublePosition( d ) * value;
+		}
+
+		assertEquals( pixels.length(), i );
+
+		final ObjectStatistics objects = new ImgLib2_CenterOfMass3().objectStatistics( mask, img );
+
+		assertEquals( numObjects, objects.numObjects );
+
+		for ( int o = 0; o < numObjects; ++o )
+		{
+			assertEquals( count[ o ], objects.count[ o ] );
+			assertEquals( intensity[ o ], objects.intensity[ o ], 1e-9 );
+
+			final double[] center = objects.centerOfMass( o );
+
+			for ( int d = 0; d < n; ++d )
+				assertEquals( weightedLocation[ o * n + d ] / intensity[ o ], center[ d ], 1e-9 );
+		}
+	}
+
+	@Test
+	public void testUShapesMergeInTheLastLine()
+	{
+		// both arms of 'a' and 'c' get their own label, 'b' is labeled in between
+		// and must stay the second object after the arms are merged
+		assertObjects(
+			"a.a.b.c..c" +
+			"a.a.b.c..c" +
+			"a.a...c..c" +
+			"aaa...cccc",
+			10, 4 );
+	}
+
+	@Test
+	public void testCombMergesFromRightToLeft()
+	{
+		// four arms, the right arms are merged first, the root of the merged labels
+		// is replaced twice by a smaller label
+		assertObjects(
+			"a.a.a.a" +
+			"a.a.a.a" +
+			"a.a.aaa" +
+			"a.aaa.." +
+			"aaa..b." +
+			"....bbb",
+			7, 6 );
+	}
+
+	@Test
+	public void testNestedUShapes()
+	{
+		// the inner U 'b' is enclosed by the arms of 'a', which merge after 'b' is done
+		assertObjects(
+			"a.......a" +
+			"a.b...b.a" +
+			"a.b...b.a" +
+			"a.bbbbb.a" +
+			"a.......a" +
+			"aaaaaaaaa",
+			9, 6 );
+	}
+
+	@Test
+	public void testPillarsMergeInTheLastPlane()
+	{
+		// two pillars along z that are only connected in the last plane, the
+		// labels of the previous plane are merged through the slab
+		assertObjects(
+			"a...." +
+			"....." +
+			"....a" +
+
+			"a...." +
+			"..b.." +
+			"....a" +
+
+			"aaaaa" +
+			"....a" +
+			"....a",
+			5, 3, 3 );
+	}
+
+	@Test
+	public void testSlabTooLarge()
+	{
+		// never iterated, the slab of 2^32 pixels does not fit into an array
+		final Img< BitType > mask = new ArrayImgFactory< BitType >().create( new long[] { 1, 1, 1 }, new BitType() );
+		final Img< FloatType > img = new ArrayImgFactory< FloatType >().create( new long[] { 1, 1, 1 }, new FloatType() );
+		final FinalInterval interval = new FinalInterval( 1l << 16, 1l << 16, 2 );
+
+		try
+		{
+			new ImgLib2_CenterOfMass3().objectStatistics( Views.interval( Views.extendZero( mask ), interval ), Views.interval( Views.extendZero( img ), interval ) );
+			fail( "A slab of " + ( 1l << 32 ) + " pixels was accepted" );
+		}
+		catch ( IllegalArgumentException e ) {}
+	}
+}
@@ -0,0 +1,193 @@
+package net.imglib2.introduction;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.Test;
+
+/**
+ * Writes through RandomAccesses whose cells would have been evicted, reads without
+ * write-backs and reopens an existing backing file
+ */
+public class DiskCachedCellImgTest
+{
+	@Test
+	public void testWritesAfterEvictionAreKept() throws IOException
+	{
+		final File file = File.createTempFile( "cells", ".raw" );
+		file.deleteOnExit();
+
+		// 4x4 cells of 16x16 pixels, the budget only holds a single cell
+		final DiskCachedCellImg< FloatType > img = new DiskCachedCellImg< FloatType >( new long[] { 64, 64 }, new FloatType(), 16, file, 16 * 16 * 4 );
+
+		try
+		{
+			final DiskCachedCellImg< FloatType >.CellRandomAccess a = img.randomAccess();
+			final DiskCachedCellImg< FloatType >.CellRandomAccess b = img.randomAccess();
+
+			// a stays in the first cell while b moves through all others
+			for ( int y = 0; y < 64; ++y )
+			{
+				for ( int x = 0; x < 64; ++x )
+				{
+					b.setPosition( new long[] { x, y } );
+					b.get().set( x + 64 * y );
+
+					a.setPosition( new long[] { x % 16, y % 16 } );
+					a.get().set( a.get().get() + 1 );
+				}
+			}
+
+			a.release();
+			b.release();
+
+			final RandomAccess< FloatType > r = img.randomAccess();
+
+			for ( int y = 0; y < 64; ++y )
+			{
+				for ( int x = 0; x < 64; ++x )
+				{
+					r.setPosition( new long[] { x, y } );
+
+					// the first cell was written by b once and incremented 16 times by a
+					final float expected = x < 16 && y < 16 ? x + 64 * y + 16 : x + 64 * y;
+					assertEquals( expected, r.get().get(), 0 );
+				}
+			}
+		}
+		finally
+		{
+			img.close();
+		}
+	}
+
+	@Test
+	public void testReadsAreNotWrittenBack() throws IOException
+	{
+		final File file = File.createTempFile( "cells", ".raw" );
+		file.deleteOnExit();
+
+		// 3x3 cells, the last ones are only partially inside the image
+		final DiskCachedCellImg< FloatType > img = new DiskCachedCellImg< FloatType >( new long[] { 40, 40 }, new FloatType(), 16, file, 16 * 16 * 4 );
+
+		try
+		{
+			final DiskCachedCellImg< FloatType >.CellCursor writer = img.cursor();
+
+			while ( writer.hasNext() )
+			{
+				writer.fwd();
+				writer.get().set( writer.getLongPosition( 0 ) + 40 * writer.getLongPosition( 1 ) );
+			}
+
+			writer.release();
+			img.flush();
+
+			final long writes = img.getWrites();
+
+			// every pixel is visited once, cell by cell
+			final DiskCachedCellImg< FloatType >.CellCursor reader = img.cursor( false );
+			long size = 0;
+
+			while ( reader.hasNext() )
+			{
+				reader.fwd();
+				assertEquals( reader.getLongPosition( 0 ) + 40 * reader.getLongPosition( 1 ), reader.get().get(), 0 );
+				++size;
+			}
+
+			reader.release();
+
+			final DiskCachedCellImg< FloatType >.CellRandomAccess randomAccess = img.randomAccess( false );
+
+			for ( int y = 0; y < 40; y += 7 )
+			{
+				for ( int x = 0; x < 40; x += 7 )
+				{
+					randomAccess.setPosition( new long[] { x, y } );
+					assertEquals( x + 40 * y, randomAccess.get().get(), 0 );
+				}
+			}
+
+			randomAccess.release();
+			img.flush();
+
+			assertEquals( 40 * 40, size );
+			assertEquals( writes, img.getWrites() );
+		}
+		finally
+		{
+			img.close();
+		}
+	}
+
+	@Test
+	public void testOpenExistingFile() throws IOException
+	{
+		final File file = File.createTempFile( "cells", ".raw" );
+		file.deleteOnExit();
+
+		final long[] dimensions = new long[] { 50, 20, 3 };
+		final DiskCachedCellImg< FloatType > img = new DiskCachedCellImg< FloatType >( dimensions, new FloatType(), 16, file, 1 << 20 );
+
+		final RandomAccess< FloatType > randomAccess = img.randomAccess();
+
+		for ( int z = 0; z < 3; ++z )
+		{
+			for ( int y = 0; y < 20; ++y )
+			{
+				for ( int x = 0; x < 50; ++x )
+				{
+					randomAccess.setPosition( new long[] { x, y, z } );
+					randomAccess.get().set( x + 50 * y + 1000 * z );
+				}
+			}
+		}
+
+		img.flush();
+		img.close();
+
+		final DiskCachedCellImg< FloatType > opened = DiskCachedCellImg.open( file, dimensions, new FloatType(), 16, 16 * 16 * 16 * 4, false );
+
+		try
+		{
+			final Cursor< FloatType > cursor = opened.cursor();
+
+			while ( cursor.hasNext() )
+			{
+				cursor.fwd();
+				assertEquals( cursor.getLongPosition( 0 ) + 50 * cursor.getLongPosition( 1 ) + 1000 * cursor.getLongPosition( 2 ), cursor.get().get(), 0 );
+			}
+
+			assertEquals( 0, opened.getWrites() );
+		}
+		finally
+		{
+			opened.close();
+		}
+	}
+
+	@Test( expected = IllegalStateException.class )
+	public void testReadOnlyRejectsWrites() throws IOException
+	{
+		final File file = File.createTempFile( "cells", ".raw" );
+		file.deleteOnExit();
+
+		final DiskCachedCellImg< FloatType > opened = DiskCachedCellImg.open( file, new long[] { 32, 32 }, new FloatType(), 16, 1 << 20, false );
+
+		try
+		{
+			opened.randomAccess( true );
+		}
+		finally
+		{
+			opened.close();
+		}
+	}
+}
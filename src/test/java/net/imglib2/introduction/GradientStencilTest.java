@@ -0,0 +1,104 @@
+package net.imglib2.introduction;
+
+import static org.junit.Assert.assertEquals;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.converter.Converter;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.planar.PlanarImgFactory;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.Test;
+
+/**
+ * Compares the interior written line by line through a LineWriter with the same
+ * conversion called for every pixel
+ */
+public class GradientStencilTest
+{
+	/**
+	 * @return the converter as a plain Converter, so that it is called for every pixel
+	 */
+	static < S > Converter< DoubleType, S > perPixel( final Converter< DoubleType, S > converter )
+	{
+		return new Converter< DoubleType, S >()
+		{
+			public void convert( DoubleType squared, S output )
+			{
+				converter.convert( squared, output );
+			}
+		};
+	}
+
+	static < T extends RealType< T > > void assertEqualImgs( Img< T > expected, Img< T > actual )
+	{
+		final Cursor< T > cursor = expected.cursor();
+		final Cursor< T > cursorActual = actual.cursor();
+
+		while ( cursor.hasNext() )
+			assertEquals( cursor.next().getRealDouble(), cursorActual.next().getRealDouble(), 0 );
+	}
+
+	static void assertMagnitude( Img< UnsignedByteType > img, Img< FloatType > lines )
+	{
+		final FinalInterval interior = GradientStencil.interior( img );
+		final Img< FloatType > pixels = lines.factory().create( img, new FloatType() );
+
+		GradientStencil.gradientInterior( img, lines, interior, GradientStencil.< FloatType >magnitude() );
+		GradientStencil.gradientInterior( img, pixels, interior, perPixel( GradientStencil.< FloatType >magnitude() ) );
+
+		assertEqualImgs( pixels, lines );
+	}
+
+	@Test
+	public void testMagnitudeLinesMatchPerPixel()
+	{
+		final Img< UnsignedByteType > img = TestImgs.randomImg( new UnsignedByteType(), 67, 45, 9 );
+
+		assertMagnitude( img, new ArrayImgFactory< FloatType >().create( img, new FloatType() ) );
+		assertMagnitude( img, new PlanarImgFactory< FloatType >().create( img, new FloatType() ) );
+	}
+
+	@Test
+	public void testThresholdLinesMatchPerPixel()
+	{
+		// lines of 67 pixels start and end in the middle of the words of the mask
+		final Img< UnsignedByteType > img = TestImgs.randomImg( new UnsignedByteType(), 67, 45, 9 );
+		final FinalInterval interior = GradientStencil.interior( img );
+
+		final Converter< DoubleType, BitType > threshold = new GradientStencil.LineConverter< BitType >()
+		{
+			public void convert( DoubleType squared, BitType output )
+			{
+				output.set( squared.get() > 100 * 100 );
+			}
+
+			public void convert( final double[] line, final int length )
+			{
+				for ( int x = 0; x < length; ++x )
+					line[ x ] = line[ x ] > 100 * 100 ? 1 : 0;
+			}
+		};
+
+		final Img< BitType > lines = new PlanarImgFactory< BitType >().create( img, new BitType() );
+		final Img< BitType > pixels = new PlanarImgFactory< BitType >().create( img, new BitType() );
+
+		// the border pixels are set before, they must not be changed by the interior
+		for ( final BitType t : lines )
+			t.set( true );
+
+		for ( final BitType t : pixels )
+			t.set( true );
+
+		GradientStencil.gradientInterior( img, lines, interior, threshold );
+		GradientStencil.gradientInterior( img, pixels, interior, perPixel( threshold ) );
+
+		assertEqualImgs( pixels, lines );
+	}
+}
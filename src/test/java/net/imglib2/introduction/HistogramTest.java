@@ -0,0 +1,185 @@
+package net.imglib2.introduction;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Iterator;
+import java.util.Random;
+
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.Test;
+
+/**
+ * Compares the single-pass fine bins with a histogram computed from the exact
+ * minimum and maximum, and checks the thresholds of a bimodal histogram: all
+ * pixels larger than the threshold have to be the bright mode
+ */
+public class HistogramTest
+{
+	@Test
+	public void testIntegerValuesInFineBins()
+	{
+		// the values of an 8-bit image loaded as FloatType, counted in several chunks
+		final Random random = new Random( 42 );
+		final double[] values = new double[ 100000 ];
+
+		for ( int i = 0; i < values.length; ++i )
+			values[ i ] = 10 + random.nextInt( 200 );
+
+		final Histogram.FineBins merged = new Histogram.FineBins();
+
+		for ( int start = 0; start < values.length; start += 30000 )
+		{
+			final Histogram.FineBins chunk = new Histogram.FineBins();
+
+			for ( int i = start; i < Math.min( values.length, start + 30000 ); ++i )
+				chunk.add( values[ i ] );
+
+			merged.add( chunk );
+		}
+
+		final Histogram histogram = merged.histogram( 256, false );
+
+		assertEquals( 10, merged.min, 0 );
+		assertEquals( 209, merged.max, 0 );
+
+		// the same bins as with two passes
+		final long[] expected = new long[ 256 ];
+		final double binWidth = ( 209 - 10 ) / 256.0;
+
+		for ( final double value : values )
+			++expected[ Math.min( 255, (int)( ( value - 10 ) / binWidth ) ) ];
+
+		assertArrayEquals( expected, histogram.getBins() );
+	}
+
+	/**
+	 * @return 100 pixels in each of the bins 40-60 and 50 pixels in each of the bins 190-210
+	 */
+	static long[] bimodal()
+	{
+		final long[] bins = new long[ 256 ];
+
+		for ( int b = 40; b <= 60; ++b )
+			bins[ b ] = 100;
+
+		for ( int b = 190; b <= 210; ++b )
+			bins[ b ] = 50;
+
+		return bins;
+	}
+
+	@Test
+	public void testUpperBound()
+	{
+		// integer bins contain the values min + b * width ... min + ( b + 1 ) * width - 1
+		final Histogram integer = new Histogram( new long[ 16 ], 10, 4, true );
+		assertEquals( 13, integer.upperBound( 0 ), 0 );
+		assertEquals( 17, integer.upperBound( 1 ), 0 );
+
+		// float bins contain the values min + b * width ... min + ( b + 1 ) * width (exclusive)
+		final Histogram real = new Histogram( new long[ 16 ], 10, 4, false );
+		assertEquals( 14, real.upperBound( 0 ), 0 );
+		assertEquals( 18, real.upperBound( 1 ), 0 );
+	}
+
+	@Test
+	public void testBimodalIntegerBins()
+	{
+		final Histogram histogram = new Histogram( bimodal(), 0, 1, true );
+
+		// the first threshold that separates both modes
+		assertEquals( 60, histogram.otsu(), 0 );
+
+		// the bin at the largest distance from the line from the peak (40) to the end of the tail (210)
+		assertEquals( 61, histogram.triangle(), 0 );
+
+		// 16 of 21 dark bins are half of all 3150 pixels
+		assertEquals( 55, histogram.percentile( 50 ), 0 );
+		assertEquals( 210, histogram.percentile( 100 ), 0 );
+
+		assertEquals( histogram.otsu(), histogram.threshold( "otsu" ), 0 );
+		assertEquals( histogram.percentile( 99.5 ), histogram.threshold( "p99.5" ), 0 );
+	}
+
+	@Test
+	public void testBimodalFloatBins()
+	{
+		// the same bins of floats, bin 60 contains values up to 61 (exclusive)
+		final Histogram histogram = new Histogram( bimodal(), 0, 1, false );
+
+		assertEquals( 61, histogram.otsu(), 0 );
+		assertEquals( 62, histogram.triangle(), 0 );
+		assertEquals( 56, histogram.percentile( 50 ), 0 );
+		assertEquals( 211, histogram.percentile( 100 ), 0 );
+	}
+
+	/**
+	 * Thresholds the image with the automatic thresholds and counts the foreground
+	 */
+	static < T extends RealType< T > > void assertSeparatesModes( Img< T > img, long numBright ) throws Exception
+	{
+		final Histogram histogram = Histogram.compute( img, 1 );
+
+		for ( final String method : new String[] { "otsu", "triangle" } )
+		{
+			final double threshold = histogram.threshold( method );
+			long numForeground = 0;
+
+			for ( final T t : img )
+				if ( t.getRealDouble() > threshold )
+					++numForeground;
+
+			assertEquals( method + " threshold " + threshold, numBright, numForeground );
+		}
+
+		// at least 99% of the pixels are at or below the 99th percentile
+		final double p99 = histogram.percentile( 99 );
+		long numBackground = 0;
+
+		for ( final T t : img )
+			if ( t.getRealDouble() <= p99 )
+				++numBackground;
+
+		assertTrue( numBackground >= 0.99 * img.size() );
+	}
+
+	@Test
+	public void testThresholdsSeparateModes() throws Exception
+	{
+		final Random random = new Random( 42 );
+
+		final Img< UnsignedByteType > integerImg = new ArrayImgFactory< UnsignedByteType >().create( new long[] { 100, 100 }, new UnsignedByteType() );
+		final Img< FloatType > floatImg = new ArrayImgFactory< FloatType >().create( new long[] { 100, 100 }, new FloatType() );
+
+		long numBright = 0;
+
+		for ( final UnsignedByteType t : integerImg )
+		{
+			// a dark mode of 70% of the pixels in 40-60, a bright one in 190-210
+			if ( random.nextInt( 10 ) < 7 )
+			{
+				t.set( 40 + random.nextInt( 21 ) );
+			}
+			else
+			{
+				t.set( 190 + random.nextInt( 21 ) );
+				++numBright;
+			}
+		}
+
+		final Iterator< UnsignedByteType > values = integerImg.iterator();
+
+		for ( final FloatType t : floatImg )
+			t.set( values.next().get() );
+
+		assertSeparatesModes( integerImg, numBright );
+		assertSeparatesModes( floatImg, numBright );
+	}
+}
@@ -0,0 +1,85 @@
+package net.imglib2.introduction;
+
+import static org.junit.Assert.assertTrue;
+
+import mpicbg.models.NoninvertibleModelException;
+import mpicbg.models.RigidModel2D;
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.Test;
+
+/**
+ * Compares the incremental rendering of affine models (also in fixed-point) with
+ * the inversion of the transformation at every pixel
+ */
+public class LineResamplerTest
+{
+	static RigidModel2D rotation()
+	{
+		final RigidModel2D model = new RigidModel2D();
+		model.set( (float)Math.toRadians( 15 ), 300, -200 );
+
+		return model;
+	}
+
+	static < T extends RealType< T > > double maxDifference( Img< T > a, Img< T > b )
+	{
+		final Cursor< T > cursorA = a.cursor();
+		final Cursor< T > cursorB = b.cursor();
+
+		double max = 0;
+
+		while ( cursorA.hasNext() )
+			max = Math.max( max, Math.abs( cursorA.next().getRealDouble() - cursorB.next().getRealDouble() ) );
+
+		return max;
+	}
+
+	@Test
+	public void testAffineLinesMatchPerPixel() throws NoninvertibleModelException
+	{
+		final Img< FloatType > img = TestImgs.randomImg( new FloatType(), 2048, 2048 );
+		final RigidModel2D model = rotation();
+
+		final Img< FloatType > incremental = img.factory().create( img, new FloatType() );
+		final Img< FloatType > perPixel = img.factory().create( img, new FloatType() );
+
+		new LineResampler< FloatType >( img, new FloatType(), model ).render( incremental );
+		new LineResampler< FloatType >( img, new FloatType(), model, false ).render( perPixel );
+
+		// both sample within the float rounding error of the model, a drift of
+		// 0.1 px along the line would change the values by up to 25
+		final double difference = maxDifference( incremental, perPixel );
+		assertTrue( "maximal difference " + difference, difference < 1 );
+	}
+
+	@Test
+	public void testFixedPointMatchesPerPixel() throws NoninvertibleModelException
+	{
+		final Img< FloatType > floatImg = TestImgs.randomImg( new FloatType(), 2048, 2048 );
+		final Img< UnsignedByteType > img = new ArrayImgFactory< UnsignedByteType >().create( floatImg, new UnsignedByteType() );
+
+		final Cursor< FloatType > cursor = floatImg.cursor();
+
+		for ( final UnsignedByteType t : img )
+			t.setReal( cursor.next().get() );
+
+		final RigidModel2D model = rotation();
+
+		final Img< UnsignedByteType > fixedPoint = img.factory().create( img, new UnsignedByteType() );
+		final Img< UnsignedByteType > perPixel = img.factory().create( img, new UnsignedByteType() );
+
+		new FixedPointResampler( 8 ).transform( img, fixedPoint, model );
+		new LineResampler< UnsignedByteType >( img, new UnsignedByteType(), model, false ).render( perPixel );
+
+		// 8 subpixel bits and the integer rounding of both passes change the
+		// values by a few gray values, a drift along the line by far more
+		final double difference = maxDifference( fixedPoint, perPixel );
+		assertTrue( "maximal difference " + difference, difference <= 4 );
+	}
+}
@@ -0,0 +1,163 @@
+package net.imglib2.introduction;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileSaver;
+import ij.process.FloatProcessor;
+import io.scif.img.ImgIOException;
+import io.scif.img.ImgOpener;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.Test;
+
+/**
+ * Maps raw files in both byte orders and multi-page TIFFs written by ImageJ and
+ * compares them with the images opened by SCIFIO
+ */
+public class MappedImgsTest
+{
+	static final int WIDTH = 37, HEIGHT = 23, DEPTH = 4;
+
+	static float value( long x, long y, long z )
+	{
+		return x + WIDTH * y + 1000 * z + 0.25f;
+	}
+
+	static File tiffStack() throws IOException
+	{
+		final ImageStack stack = new ImageStack( WIDTH, HEIGHT );
+
+		for ( int z = 0; z < DEPTH; ++z )
+		{
+			final FloatProcessor plane = new FloatProcessor( WIDTH, HEIGHT );
+
+			for ( int y = 0; y < HEIGHT; ++y )
+				for ( int x = 0; x < WIDTH; ++x )
+					plane.setf( x, y, value( x, y, z ) );
+
+			stack.addSlice( "" + z, plane );
+		}
+
+		final File file = File.createTempFile( "stack", ".tif" );
+		file.deleteOnExit();
+
+		assertTrue( new FileSaver( new ImagePlus( "stack", stack ) ).saveAsTiffStack( file.getAbsolutePath() ) );
+
+		return file;
+	}
+
+	static void assertEqualImgs( Img< FloatType > expected, Img< FloatType > actual )
+	{
+		assertEquals( expected.numDimensions(), actual.numDimensions() );
+
+		for ( int d = 0; d < expected.numDimensions(); ++d )
+			assertEquals( expected.dimension( d ), actual.dimension( d ) );
+
+		// both are iterated in flat order
+		final Cursor< FloatType > cursor = expected.cursor();
+		final Cursor< FloatType > cursorActual = actual.cursor();
+
+		while ( cursor.hasNext() )
+			assertEquals( cursor.next().get(), cursorActual.next().get(), 0 );
+	}
+
+	@Test
+	public void testTiffMatchesImgOpener() throws IOException, ImgIOException
+	{
+		final File file = tiffStack();
+
+		final PlanarImg< FloatType, MappedFloatArray > mapped = MappedImgs.openTiff( file, false );
+		final Img< FloatType > opened = new ImgOpener().openImg( file.getAbsolutePath(), new ArrayImgFactory< FloatType >(), new FloatType() );
+
+		assertEquals( DEPTH, mapped.numSlices() );
+		assertEqualImgs( opened, mapped );
+	}
+
+	@Test
+	public void testWritableThresholdRoundTrip() throws IOException, ImgIOException
+	{
+		final File file = tiffStack();
+
+		// the threshold changes the file through the mapping
+		final PlanarImg< FloatType, MappedFloatArray > mapped = MappedImgs.openTiff( file, true );
+		assertTrue( PrimitiveThreshold.threshold( mapped, 1500 ) );
+
+		final Img< FloatType > opened = new ImgOpener().openImg( file.getAbsolutePath(), new ArrayImgFactory< FloatType >(), new FloatType() );
+		final Cursor< FloatType > cursor = opened.localizingCursor();
+
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+
+			final float expected = value( cursor.getLongPosition( 0 ), cursor.getLongPosition( 1 ), cursor.getLongPosition( 2 ) ) > 1500 ? 255 : 0;
+			assertEquals( expected, cursor.get().get(), 0 );
+		}
+	}
+
+	@Test
+	public void testRawByteOrders() throws IOException
+	{
+		for ( final ByteOrder order : new ByteOrder[] { ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN } )
+		{
+			// a header of 16 bytes before the pixels
+			final ByteBuffer buffer = ByteBuffer.allocate( 16 + WIDTH * HEIGHT * DEPTH * 4 ).order( order );
+			buffer.position( 16 );
+
+			for ( int z = 0; z < DEPTH; ++z )
+				for ( int y = 0; y < HEIGHT; ++y )
+					for ( int x = 0; x < WIDTH; ++x )
+						buffer.putFloat( value( x, y, z ) );
+
+			final File file = File.createTempFile( "stack", ".raw" );
+			file.deleteOnExit();
+
+			final FileOutputStream out = new FileOutputStream( file );
+			out.write( buffer.array() );
+			out.close();
+
+			final Img< FloatType > mapped = MappedImgs.openRaw( file, 16, new long[] { WIDTH, HEIGHT, DEPTH }, order, false );
+			final Cursor< FloatType > cursor = mapped.localizingCursor();
+
+			while ( cursor.hasNext() )
+			{
+				cursor.fwd();
+				assertEquals( value( cursor.getLongPosition( 0 ), cursor.getLongPosition( 1 ), cursor.getLongPosition( 2 ) ), cursor.get().get(), 0 );
+			}
+		}
+	}
+
+	@Test
+	public void testShortFileIsNotGrown() throws IOException
+	{
+		final File file = File.createTempFile( "short", ".raw" );
+		file.deleteOnExit();
+
+		final FileOutputStream out = new FileOutputStream( file );
+		out.write( new byte[ WIDTH * HEIGHT * 4 ] );
+		out.close();
+
+		try
+		{
+			MappedImgs.openRaw( file, 0, new long[] { WIDTH, HEIGHT, DEPTH }, ByteOrder.BIG_ENDIAN, true );
+			fail( "A file that is too short was mapped" );
+		}
+		catch ( IOException e )
+		{
+			assertEquals( WIDTH * HEIGHT * 4, file.length() );
+		}
+	}
+}
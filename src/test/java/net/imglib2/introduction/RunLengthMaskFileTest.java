@@ -0,0 +1,140 @@
+package net.imglib2.introduction;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Writes masks with {@link RunLengthMaskWriter} and decodes them with
+ * {@link RunLengthMaskReader}, block by block and pixel by pixel
+ */
+public class RunLengthMaskFileTest
+{
+	static boolean[] roundTrip( boolean[] mask, long[] dimensions, long blockSize ) throws IOException
+	{
+		final File file = File.createTempFile( "mask", ".rle" );
+		file.deleteOnExit();
+
+		final RunLengthMaskWriter writer = new RunLengthMaskWriter( file, dimensions, blockSize );
+
+		for ( final boolean value : mask )
+			writer.add( value );
+
+		writer.close();
+
+		final RunLengthMaskReader reader = new RunLengthMaskReader( file );
+
+		try
+		{
+			assertEquals( ( mask.length + blockSize - 1 ) / blockSize, reader.numBlocks() );
+
+			// every block decoded on its own
+			for ( int b = 0; b < reader.numBlocks(); ++b )
+			{
+				final long[] words = reader.readBlock( b );
+				final long size = reader.blockPixels( b );
+
+				assertEquals( Math.min( blockSize, mask.length - b * blockSize ), size );
+
+				for ( int i = 0; i < size; ++i )
+					assertEquals( "block " + b + ", pixel " + i, mask[ (int)( b * blockSize ) + i ], ( words[ i >>> 6 ] & ( 1l << ( i & 63 ) ) ) != 0 );
+
+				// the bits after the last pixel of the block stay 0
+				for ( long i = size; i < words.length * 64l; ++i )
+					assertEquals( 0, words[ (int)( i >>> 6 ) ] & ( 1l << ( i & 63 ) ) );
+			}
+
+			// every pixel in flat order
+			final boolean[] decoded = new boolean[ mask.length ];
+			final long[] position = new long[ dimensions.length ];
+
+			for ( int i = 0; i < mask.length; ++i )
+			{
+				decoded[ i ] = reader.get( position );
+
+				for ( int d = 0; d < dimensions.length; ++d )
+				{
+					if ( ++position[ d ] < dimensions[ d ] )
+						break;
+
+					position[ d ] = 0;
+				}
+			}
+
+			return decoded;
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+
+	static void assertMask( boolean[] expected, boolean[] actual )
+	{
+		for ( int i = 0; i < expected.length; ++i )
+			assertEquals( "pixel " + i, expected[ i ], actual[ i ] );
+	}
+
+	@Test
+	public void testRunsAcrossBlocks() throws IOException
+	{
+		// 6 blocks of 64 pixels, the last one only has 30
+		final long[] dimensions = new long[] { 50, 7 };
+		final boolean[] mask = new boolean[ 350 ];
+
+		// a run across the first block boundary, the second block starts with 1
+		for ( int i = 60; i < 70; ++i )
+			mask[ i ] = true;
+
+		// a run of more than 127 pixels (two bytes) that covers the whole third block
+		for ( int i = 100; i < 300; ++i )
+			mask[ i ] = true;
+
+		// single pixels, the last pixel of a block and of the mask
+		mask[ 310 ] = true;
+		mask[ 319 ] = true;
+		mask[ 349 ] = true;
+
+		assertMask( mask, roundTrip( mask, dimensions, 64 ) );
+	}
+
+	@Test
+	public void testRandomMasks() throws IOException
+	{
+		final Random random = new Random( 42 );
+
+		// planes as blocks, a single partial block and blocks that do not end at a word
+		final long[][] dimensions = new long[][] { { 31, 17, 5 }, { 100, 3 }, { 13, 11, 7 } };
+		final long[] blockSizes = new long[] { 31 * 17, 1000, 100 };
+
+		for ( int k = 0; k < dimensions.length; ++k )
+		{
+			long size = 1;
+
+			for ( final long d : dimensions[ k ] )
+				size *= d;
+
+			final boolean[] mask = new boolean[ (int)size ];
+
+			// runs of random length
+			boolean value = random.nextBoolean();
+
+			for ( int i = 0; i < mask.length; )
+			{
+				final int run = 1 + random.nextInt( 150 );
+
+				for ( int j = i; j < Math.min( mask.length, i + run ); ++j )
+					mask[ j ] = value;
+
+				i += run;
+				value = !value;
+			}
+
+			assertMask( mask, roundTrip( mask, dimensions[ k ], blockSizes[ k ] ) );
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package net.imglib2.introduction;
+
+import static org.junit.Assert.assertEquals;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.Test;
+
+/**
+ * Iterates the run-length masks of the sparse thresholds pixel by pixel and compares
+ * them with the threshold of every pixel
+ */
+public class RunLengthMaskTest
+{
+	static void assertMask( Img< FloatType > img, FloatType threshold, Img< BitType > mask )
+	{
+		assertEquals( img.size(), mask.size() );
+
+		final Cursor< FloatType > cursor = img.cursor();
+		final Cursor< BitType > cursorMask = mask.cursor();
+
+		while ( cursor.hasNext() )
+		{
+			final boolean foreground = cursor.next().compareTo( threshold ) > 0;
+
+			cursorMask.fwd();
+			assertEquals( foreground, cursorMask.get().get() );
+			assertEquals( cursor.getLongPosition( 1 ), cursorMask.getLongPosition( 1 ) );
+		}
+	}
+
+	@Test
+	public void testCursorMatchesThreshold()
+	{
+		final Img< FloatType > img = TestImgs.randomImg( new FloatType(), 100, 70 );
+		final FloatType threshold = new FloatType( 200 );
+
+		assertMask( img, threshold, new ImgLib2_Threshold4().thresholdSparse( img, threshold ) );
+	}
+
+	@Test
+	public void testParallelSlabsMatchThreshold() throws Exception
+	{
+		// 3 slabs of 16 planes and a smaller one
+		final Img< FloatType > img = TestImgs.randomImg( new FloatType(), 37, 23, 53 );
+		final FloatType threshold = new FloatType( 128 );
+
+		final RunLengthMask mask = new ImgLib2_Threshold6().thresholdSparse( img, threshold, 4 );
+
+		assertMask( img, threshold, mask );
+		assertEquals( RunLengthMask.threshold( img, threshold ).area(), mask.area() );
+
+		// jumping ahead gives the pixel at the position of the cursor
+		final Cursor< BitType > cursor = mask.cursor();
+		final RandomAccess< BitType > randomAccess = mask.randomAccess();
+
+		cursor.jumpFwd( 12345 );
+		randomAccess.setPosition( cursor );
+
+		assertEquals( 12344 % 37, cursor.getLongPosition( 0 ) );
+		assertEquals( randomAccess.get().get(), cursor.get().get() );
+	}
+}
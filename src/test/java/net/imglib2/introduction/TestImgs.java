@@ -0,0 +1,29 @@
+package net.imglib2.introduction;
+
+import java.util.Random;
+
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * The images shared by the tests
+ */
+public class TestImgs
+{
+	/**
+	 * @return an ArrayImg of random gray values between 0 and 255, the same for every call,
+	 * neighboring pixels differ by up to 255, so an error in a sampled location shows up in the values
+	 */
+	public static < T extends RealType< T > & NativeType< T > > Img< T > randomImg( T type, long... dimensions )
+	{
+		final Img< T > img = new ArrayImgFactory< T >().create( dimensions, type );
+		final Random random = new Random( 42 );
+
+		for ( final T t : img )
+			t.setReal( random.nextInt( 256 ) );
+
+		return img;
+	}
+}